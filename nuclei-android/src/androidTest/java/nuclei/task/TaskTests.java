@@ -20,6 +20,12 @@ import android.content.Context;
 import android.os.Looper;
 import android.test.ApplicationTestCase;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -62,6 +68,24 @@ public class TaskTests extends ApplicationTestCase<Application> {
         assertEquals(3, result.get());
     }
 
+    public void testChainFused() throws TimeoutException {
+        TaskPool pool = Tasks.get();
+        long fused = pool.getMetrics().getFusedCount();
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        CountDownLatch chained = new CountDownLatch(1);
+        Result<Integer> result = pool.execute(new TestThreadChainTask(threads, chained))
+                .continueWith(new TestThreadChainTask(threads, null), pool)
+                .continueWith(new TestThreadChainTask(threads, null), pool);
+        // the root task waits until the whole chain is attached
+        chained.countDown();
+        result.syncWait(30000);
+        assertEquals(3, result.get().intValue());
+        assertEquals(3, threads.size());
+        assertSame(threads.get(0), threads.get(1));
+        assertSame(threads.get(1), threads.get(2));
+        assertTrue(pool.getMetrics().getFusedCount() >= fused + 2);
+    }
+
     public void testPool() {
         TaskPool pool = TaskPool.newBuilder("TestPool")
                 .withThreads(2)
@@ -92,6 +116,82 @@ public class TaskTests extends ApplicationTestCase<Application> {
         pool.shutdown();
     }
 
+    public void testCoalesce() {
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger results = new AtomicInteger();
+        Result.Callback<Integer> callback = new Result.CallbackAdapter<Integer>() {
+            @Override
+            public void onResult(Integer value) {
+                assertTrue(Looper.getMainLooper() == Looper.myLooper());
+                assertEquals(1, value.intValue());
+                synchronized (results) {
+                    results.incrementAndGet();
+                    results.notify();
+                }
+            }
+        };
+        Tasks.execute(new TestCoalesceTask(runs)).addCallback(callback);
+        Tasks.execute(new TestCoalesceTask(runs)).addCallback(callback);
+        synchronized (results) {
+            try {
+                while (results.get() < 2)
+                    results.wait(30000);
+            } catch (InterruptedException ignore) {}
+        }
+        assertEquals(2, results.get());
+        assertEquals(1, runs.get());
+    }
+
+    public void testFork() {
+        TaskPool pool = TaskPool.newBuilder("TestForkPool")
+                .withWorkStealing(true)
+                .build();
+        Result<Integer> result = pool.execute(new TestForkTask(0, 64));
+        result.syncWait(30000);
+        assertEquals(Integer.valueOf(2016), result.get());
+        pool.shutdown();
+    }
+
+    public void testTimeout() {
+        Result<Integer> result = Tasks.execute(new TestTimeoutTask());
+        result.syncWait(30000);
+        assertTrue(result.getException() instanceof TimeoutException);
+    }
+
+    public void testParallelMap() {
+        Result<List<Integer>> result = Tasks.parallelMap(Arrays.asList(1, 2, 3, 4), new TaskMapper<Integer, Integer>() {
+            @Override
+            public Integer map(Context context, Integer input) {
+                return input * 2;
+            }
+        });
+        Result<Integer> sum = Result.zip(result, new Result<>(1), new Result.Combiner<List<Integer>, Integer, Integer>() {
+            @Override
+            public Integer combine(List<Integer> first, Integer second) {
+                int sum = second;
+                for (Integer value : first)
+                    sum += value;
+                return sum;
+            }
+        });
+        sum.syncWait(30000);
+        assertEquals(Arrays.asList(2, 4, 6, 8), result.get());
+        assertEquals(Integer.valueOf(21), sum.get());
+    }
+
+    public void testGroup() {
+        TaskGroup group = Tasks.newGroup(null);
+        Result<Integer> timeout = group.execute(new TestTimeoutTask());
+        Result<Integer> coalesce = group.execute(new TestCoalesceTask(new AtomicInteger()));
+        Result<Void> result = group.done().getResult();
+        result.syncWait(30000);
+        assertTrue(result.getException() instanceof TimeoutException);
+        // the other members leave the group once their own results are delivered
+        timeout.syncWait(30000);
+        coalesce.syncWait(30000);
+        assertEquals(0, group.getTaskCount());
+    }
+
     class TestTask extends Task<String> {
 
         @Override
@@ -114,6 +214,87 @@ public class TaskTests extends ApplicationTestCase<Application> {
 
     }
 
+    class TestCoalesceTask extends Task<Integer> {
+
+        final AtomicInteger runs;
+
+        TestCoalesceTask(AtomicInteger runs) {
+            this.runs = runs;
+        }
+
+        @Override
+        public String getId() {
+            return "TestCoalesceTaskId";
+        }
+
+        @Override
+        public boolean shouldCoalesce() {
+            return true;
+        }
+
+        @Override
+        public void run(Context context) {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException ignore) {}
+            onComplete(runs.incrementAndGet());
+        }
+
+    }
+
+    class TestTimeoutTask extends Task<Integer> {
+
+        @Override
+        public String getId() {
+            return "TestTimeoutTaskId";
+        }
+
+        @Override
+        public long getTimeout() {
+            return 100;
+        }
+
+        @Override
+        public void run(Context context) throws Exception {
+            Thread.sleep(10000);
+            onComplete(1);
+        }
+
+    }
+
+    class TestForkTask extends Task<Integer> {
+
+        final int from;
+        final int to;
+
+        TestForkTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String getId() {
+            return "TestForkTask-" + from + "-" + to;
+        }
+
+        @Override
+        public void run(Context context) {
+            assertTrue(Looper.getMainLooper() != Looper.myLooper());
+            if (to - from <= 8) {
+                int sum = 0;
+                for (int i = from; i < to; i++)
+                    sum += i;
+                onComplete(sum);
+            } else {
+                int mid = (from + to) / 2;
+                Result<Integer> left = fork(new TestForkTask(from, mid));
+                Result<Integer> right = fork(new TestForkTask(mid, to));
+                onComplete(join(left) + join(right));
+            }
+        }
+
+    }
+
     class TestChainTaskRoot extends ChainedTask<Integer, Integer> {
 
         @Override
@@ -129,6 +310,35 @@ public class TaskTests extends ApplicationTestCase<Application> {
 
     }
 
+    class TestThreadChainTask extends ChainedTask<Integer, Integer> {
+
+        final List<Thread> threads;
+        final CountDownLatch chained;
+
+        TestThreadChainTask(List<Thread> threads, CountDownLatch chained) {
+            this.threads = threads;
+            this.chained = chained;
+        }
+
+        @Override
+        public String getId() {
+            return "ThreadChainTaskId" + threads.size();
+        }
+
+        @Override
+        public void run(Context context, Result<Integer> previousResult) {
+            if (chained != null) {
+                try {
+                    chained.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException ignore) {
+                }
+            }
+            threads.add(Thread.currentThread());
+            onComplete(previousResult == null ? 1 : previousResult.get() + 1);
+        }
+
+    }
+
     class TestChainTask extends ChainedTask<Integer, Integer> {
 
         @Override
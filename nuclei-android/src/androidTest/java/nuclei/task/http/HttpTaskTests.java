@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task.http;
+
+import android.app.Application;
+import android.content.Context;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+
+import nuclei.task.cache.SimpleCache;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class HttpTaskTests extends ApplicationTestCase<Application> {
+
+    SimpleCache cache;
+
+    public HttpTaskTests() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        createApplication();
+        super.setUp();
+        cache = new SimpleCache(new File(getApplication().getCacheDir(), "http-task-tests"), 1024 * 1024);
+        cache.evictAll();
+        Http.sCache = cache;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Http.sCache = null;
+        cache.close();
+        super.tearDown();
+    }
+
+    public void testCacheResponseBody() throws Exception {
+        StringTask task = new StringTask();
+        Response response = new Response.Builder()
+                .request(new Request.Builder().url(task.getUrl()).build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(MediaType.parse("text/plain"), "hello world"))
+                .build();
+        assertEquals("hello world", task.onDeserializeAndCache(getApplication(), response));
+        SimpleCache.Entry entry = cache.get(task.getUrl());
+        assertNotNull(entry);
+        try {
+            assertEquals("hello world", task.onLoadCacheEntry(getApplication(), entry));
+        } finally {
+            entry.close();
+        }
+    }
+
+    static class StringTask extends HttpTask<String> {
+
+        @Override
+        protected boolean shouldCacheResponseBody() {
+            return true;
+        }
+
+        @Override
+        protected String onDeserialize(Context context, Response response) throws Exception {
+            return response.body().string();
+        }
+
+        @Override
+        protected String toUrl() {
+            return "https://example.com/tee";
+        }
+
+    }
+
+}
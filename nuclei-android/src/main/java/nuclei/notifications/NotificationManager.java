@@ -238,6 +238,7 @@ public abstract class NotificationManager {
             onPrepareTaskScheduler(builder);
             builder.setUpdateCurrent(true)
                     .setPersisted(true)
+                    .setBatched(true)
                     .build()
                     .schedule(CONTEXT);
         } else {
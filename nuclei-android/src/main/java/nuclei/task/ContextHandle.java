@@ -19,6 +19,9 @@ import android.app.Application;
 import android.content.Context;
 
 import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * One of the most common errors that I have noticed are caused by Contexts having lost scope
@@ -34,6 +37,9 @@ import java.lang.ref.WeakReference;
  * <br />
  * You should also call ContextHandle.initialize in your main application class to provide a
  * global, never released ContextHandle.
+ * <br />
+ * Releasing a handle cancels the tasks bound to it that haven't started running yet, and
+ * cancels any TaskGroup bound to it.
  */
 public final class ContextHandle {
 
@@ -54,6 +60,8 @@ public final class ContextHandle {
     }
 
     private WeakReference<Context> mContext;
+    private final Set<Task<?>> mTasks = Collections.newSetFromMap(new ConcurrentHashMap<Task<?>, Boolean>());
+    private final Set<TaskGroup> mGroups = Collections.newSetFromMap(new ConcurrentHashMap<TaskGroup, Boolean>());
 
     private ContextHandle(Context context) {
         mContext = new WeakReference<>(context);
@@ -73,6 +81,30 @@ public final class ContextHandle {
         if (applicationHandle == this)
             throw new RuntimeException("You cannot release the application handle.");
         mContext.clear();
+        for (TaskGroup group : mGroups) {
+            group.cancel();
+        }
+        for (Task<?> task : mTasks) {
+            task.cancel();
+        }
+    }
+
+    void bind(Task<?> task) {
+        if (applicationHandle != this)
+            mTasks.add(task);
+    }
+
+    void unbind(Task<?> task) {
+        mTasks.remove(task);
+    }
+
+    void bind(TaskGroup group) {
+        if (applicationHandle != this)
+            mGroups.add(group);
+    }
+
+    void unbind(TaskGroup group) {
+        mGroups.remove(group);
     }
 
 }
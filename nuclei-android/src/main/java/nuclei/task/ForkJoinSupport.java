@@ -0,0 +1,85 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the ForkJoinPool references out of TaskPool so that it still loads prior to API 21
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class ForkJoinSupport {
+
+    private ForkJoinSupport() {
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    static ExecutorService newPool(final String name, int parallelism) {
+        return new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(name + " #" + mCount.incrementAndGet());
+                return thread;
+            }
+        }, null, true);
+    }
+
+    static boolean isWorkStealing(ExecutorService executor) {
+        return isSupported() && executor instanceof ForkJoinPool;
+    }
+
+    /**
+     * Push the runnable onto the current worker's deque if called from one of the pool's
+     * workers, otherwise submit it to the pool.
+     *
+     * @return The ForkJoinTask to join on
+     */
+    static Object fork(ExecutorService executor, Runnable runnable) {
+        ForkJoinPool pool = (ForkJoinPool) executor;
+        ForkJoinTask<?> task = ForkJoinTask.adapt(runnable);
+        Thread thread = Thread.currentThread();
+        if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == pool)
+            task.fork();
+        else
+            pool.execute(task);
+        return task;
+    }
+
+    /**
+     * Join on a task returned from fork.  When called from a worker, the worker runs or
+     * steals other tasks while it waits instead of blocking.
+     */
+    static void join(Object task) {
+        ((ForkJoinTask<?>) task).join();
+    }
+
+    static boolean isForkJoinTask(Object task) {
+        return isSupported() && task instanceof ForkJoinTask;
+    }
+
+}
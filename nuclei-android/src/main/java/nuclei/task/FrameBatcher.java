@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects completed tasks and delivers them together once per frame on the pool's looper.
+ *
+ * Prior to API 16 there is no Choreographer, so the batch is delivered on the next message.
+ */
+final class FrameBatcher implements Runnable {
+
+    private final TaskPool pool;
+    private final Handler handler;
+    private final ConcurrentLinkedQueue<TaskPool.TaskRunnable> completed = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private Object frameCallback;
+
+    FrameBatcher(TaskPool pool, Handler handler) {
+        this.pool = pool;
+        this.handler = handler;
+    }
+
+    void add(TaskPool.TaskRunnable runnable) {
+        completed.add(runnable);
+        if (scheduled.compareAndSet(false, true))
+            handler.post(this);
+    }
+
+    @Override
+    public void run() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (frameCallback == null)
+                frameCallback = new FrameCallback(this);
+            ((FrameCallback) frameCallback).post();
+        } else {
+            deliver();
+        }
+    }
+
+    void deliver() {
+        scheduled.set(false);
+        int count = completed.size();
+        Result.beginBatch();
+        try {
+            for (int i = 0; i < count; i++) {
+                TaskPool.TaskRunnable runnable = completed.poll();
+                if (runnable == null)
+                    break;
+                pool.onDeliver(runnable);
+            }
+        } finally {
+            Result.endBatch();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    static final class FrameCallback implements Choreographer.FrameCallback {
+
+        private final FrameBatcher batcher;
+
+        FrameCallback(FrameBatcher batcher) {
+            this.batcher = batcher;
+        }
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            batcher.deliver();
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds low priority tasks until the pool's looper is idle and the pool has nothing queued,
+ * then dispatches them a few at a time.
+ *
+ * Each time the looper goes idle at most budget idle tasks are in flight.  Their results are
+ * delivered on the looper, which makes it go idle again and dispatches the next ones.
+ */
+final class IdleLane implements MessageQueue.IdleHandler, Runnable {
+
+    static final int DEFAULT_BUDGET = 1;
+    static final long RETRY_DELAY = 100;
+
+    static final class Entry {
+
+        final ContextHandle handle;
+        final Task<Object> task;
+        final Result<Object> result;
+
+        Entry(ContextHandle handle, Task<Object> task, Result<Object> result) {
+            this.handle = handle;
+            this.task = task;
+            this.result = result;
+        }
+
+    }
+
+    private final TaskPool pool;
+    private final Handler handler;
+    private final int budget;
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean registered = new AtomicBoolean();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            // nothing to do, the looper goes idle again after this message
+        }
+    };
+
+    private final Result.SimpleCallback<Object> onFinished = new Result.SimpleCallback<Object>() {
+        @Override
+        public void onResult(Object result, Exception err, Object handle) {
+            inFlight.decrementAndGet();
+            // results delivered off the looper don't make it idle again on their own
+            if (!pending.isEmpty())
+                handler.post(retry);
+        }
+    };
+
+    IdleLane(TaskPool pool, Handler handler, int budget) {
+        this.pool = pool;
+        this.handler = handler;
+        this.budget = budget;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> Result<T> add(ContextHandle handle, Task<T> task) {
+        if (handle == null)
+            handle = ContextHandle.getApplicationHandle();
+        // bound to the handle now, like the Result execute() returns, not once the task runs
+        Result<T> result = new Result<T>().withHandle(handle);
+        pending.add(new Entry(handle, (Task<Object>) task, (Result<Object>) result));
+        register();
+        return result;
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    private void register() {
+        if (registered.compareAndSet(false, true)) {
+            if (handler.getLooper() == Looper.myLooper())
+                run();
+            else
+                handler.post(this);
+        }
+    }
+
+    /**
+     * Add the idle handler, on the looper's thread
+     */
+    @Override
+    public void run() {
+        Looper.myQueue().addIdleHandler(this);
+    }
+
+    @Override
+    public boolean queueIdle() {
+        if (pool.isShutdown()) {
+            registered.set(false);
+            return false;
+        }
+        if (pool.getQueuedCount() > 0) {
+            // higher priority work is waiting, look again after it has had a chance to run
+            handler.postDelayed(retry, RETRY_DELAY);
+            return true;
+        }
+        Entry entry;
+        while (inFlight.get() < budget && (entry = pending.poll()) != null) {
+            inFlight.incrementAndGet();
+            pool.execute(entry.handle, entry.task, Task.PRIORITY_LOW)
+                    .addCallback(onFinished)
+                    .forward(entry.result);
+        }
+        if (!pending.isEmpty())
+            return true;
+        registered.set(false);
+        // added after the poll but before registered was cleared
+        return !pending.isEmpty() && registered.compareAndSet(false, true);
+    }
+
+}
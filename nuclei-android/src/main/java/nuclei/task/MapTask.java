@@ -0,0 +1,48 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.content.Context;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps one input of a parallel map.  Every MapTask has its own ID, so that they run in parallel.
+ */
+final class MapTask<I, O> extends Task<O> {
+
+    private static final AtomicLong sId = new AtomicLong();
+
+    private final String id = "map-" + sId.incrementAndGet();
+    private final TaskMapper<I, O> mapper;
+    private final I input;
+
+    MapTask(TaskMapper<I, O> mapper, I input) {
+        this.mapper = mapper;
+        this.input = input;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void run(Context context) throws Exception {
+        onComplete(mapper.map(context, input));
+    }
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+/**
+ * A bounded, in memory LRU of successful task results keyed by the task's class and ID.
+ *
+ * @see TaskPool.Builder#withMemoization(int)
+ * @see Task#getMemoizeTtl()
+ */
+final class MemoCache {
+
+    static final class Entry {
+
+        final Object value;
+        final long expires;
+
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+    }
+
+    private final LruCache<String, Entry> cache;
+
+    MemoCache(int maxEntries) {
+        cache = new LruCache<>(maxEntries);
+    }
+
+    static String key(Task<?> task) {
+        return task.getClass().getName() + ':' + task.getId();
+    }
+
+    /**
+     * @return The entry for the task, or null if there isn't one or it has expired
+     */
+    Entry get(Task<?> task) {
+        String key = key(task);
+        Entry entry = cache.get(key);
+        if (entry == null)
+            return null;
+        if (entry.expires <= SystemClock.elapsedRealtime()) {
+            cache.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    void put(Task<?> task, Object value, long ttl) {
+        cache.put(key(task), new Entry(value, SystemClock.elapsedRealtime() + ttl));
+    }
+
+    void remove(Task<?> task) {
+        cache.remove(key(task));
+    }
+
+    void clear() {
+        cache.evictAll();
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+}
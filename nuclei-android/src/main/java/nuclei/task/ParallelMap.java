@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs a parallel map with at most TaskPool#parallelism MapTasks in flight, each one that
+ * finishes executes the next input from the worker thread it finished on.
+ */
+final class ParallelMap<I, O> {
+
+    final TaskPool pool;
+    final ContextHandle handle;
+    final List<? extends I> inputs;
+    final TaskMapper<I, O> mapper;
+    final Result<List<O>> result = new Result<>();
+    final AtomicReferenceArray<O> values;
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicInteger remaining;
+    final AtomicBoolean failed = new AtomicBoolean();
+
+    ParallelMap(TaskPool pool, ContextHandle handle, List<? extends I> inputs, TaskMapper<I, O> mapper) {
+        this.pool = pool;
+        this.handle = handle;
+        this.inputs = inputs;
+        this.mapper = mapper;
+        values = new AtomicReferenceArray<>(inputs.size());
+        remaining = new AtomicInteger(inputs.size());
+    }
+
+    Result<List<O>> start() {
+        int size = inputs.size();
+        if (size == 0)
+            return new Result<>(Collections.<O>emptyList());
+        for (int i = 0, len = Math.min(size, pool.parallelism); i < len; i++) {
+            executeNext();
+        }
+        return result;
+    }
+
+    /**
+     * A map that already finished delivers to its callback as it's added, so executions
+     * requested while one is in progress are counted and run by the same loop instead of
+     * recursing once per input
+     */
+    void executeNext() {
+        if (pending.getAndIncrement() != 0)
+            return;
+        do {
+            int index = next.getAndIncrement();
+            if (index < inputs.size() && !failed.get()) {
+                pool.execute(handle, new MapTask<>(mapper, inputs.get(index)))
+                        .addCallback(new MapCallback(index));
+            }
+        } while (pending.decrementAndGet() != 0);
+    }
+
+    void onMapped(int index, O value, Exception err) {
+        if (err != null) {
+            if (failed.compareAndSet(false, true))
+                result.onException(err);
+            return;
+        }
+        values.set(index, value);
+        if (remaining.decrementAndGet() == 0 && !failed.get()) {
+            int size = inputs.size();
+            List<O> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                list.add(values.get(i));
+            result.onResult(list);
+        } else {
+            executeNext();
+        }
+    }
+
+    final class MapCallback implements Result.SimpleCallback<O>, Result.InlineCallback {
+
+        final int index;
+
+        MapCallback(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onResult(O value, Exception err, Object handle) {
+            onMapped(index, value, err);
+        }
+
+    }
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.os.Debug;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nuclei.logs.Log;
+
+/**
+ * Resizes a TaskPool's ThreadPoolExecutor from how much of its tasks' time is spent blocked.
+ * <br />
+ * Each interval the wall time and thread CPU time of the tasks run are compared.  The ideal
+ * number of threads is cpus * (1 + wait / cpu), where wait is the wall time not spent on
+ * the CPU.  The pool only grows while tasks are waiting in the queue.
+ */
+final class PoolSizer implements Runnable {
+
+    static final long DEFAULT_INTERVAL = 1000;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private final TaskPool pool;
+    private final ThreadPoolExecutor executor;
+    private final int minThreads;
+    private final int maxThreads;
+    private final AtomicLong wallNanos = new AtomicLong();
+    private final AtomicLong cpuNanos = new AtomicLong();
+    private ScheduledFuture<?> future;
+
+    PoolSizer(TaskPool pool, ThreadPoolExecutor executor, int minThreads, int maxThreads) {
+        this.pool = pool;
+        this.executor = executor;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+    }
+
+    void start(long interval) {
+        future = TaskPool.getScheduler().scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (future != null)
+            future.cancel(false);
+    }
+
+    /**
+     * @return The CPU time of the calling thread, or -1 if it isn't available
+     */
+    static long cpuTime() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    void onRun(long wall, long cpu) {
+        if (cpu < 0 || wall <= 0)
+            return;
+        wallNanos.addAndGet(wall);
+        cpuNanos.addAndGet(Math.min(cpu, wall));
+    }
+
+    @Override
+    public void run() {
+        long wall = wallNanos.getAndSet(0);
+        long cpu = cpuNanos.getAndSet(0);
+        int size = executor.getCorePoolSize();
+        int queued = executor.getQueue().size();
+        int target;
+        float blockingRatio;
+        if (wall == 0) {
+            // idle, nothing to measure
+            blockingRatio = 0;
+            target = minThreads;
+        } else {
+            blockingRatio = (float) (wall - cpu) / wall;
+            long waitNanos = wall - cpu;
+            target = (int) Math.ceil(CPU_COUNT * (1 + (double) waitNanos / Math.max(cpu, 1)));
+        }
+        target = Math.max(minThreads, Math.min(maxThreads, target));
+        if (target > size && queued == 0)
+            return;
+        if (target == size)
+            return;
+        if (target > size) {
+            executor.setMaximumPoolSize(target);
+            executor.setCorePoolSize(target);
+        } else {
+            executor.setCorePoolSize(target);
+            executor.setMaximumPoolSize(target);
+        }
+        if (TaskPool.LOG.isLoggable(Log.INFO))
+            TaskPool.LOG.i("Resized " + pool.getName() + " from " + size + " to " + target
+                    + " threads, blocking ratio " + blockingRatio);
+        TaskPoolListener listener = TaskPool.LISTENER;
+        if (listener instanceof TaskPoolMonitor)
+            ((TaskPoolMonitor) listener).onResize(pool, size, target, blockingRatio);
+    }
+
+}
@@ -18,24 +18,239 @@ package nuclei.task;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * An asynchronous pending result
  *
+ * The result is completed with a compare and swap and callbacks are pushed onto a lock free
+ * stack, only the blocking get(long) and syncWait(long) park the calling thread.
+ *
  * @param <T>
  */
 public class Result<T> {
 
-    final List<SimpleCallback<T>> mCallbacks = new ArrayList<>(1);
+    static final int PENDING = 0;
+    static final int COMPLETING = 1;
+    static final int COMPLETE = 2;
+
+    /**
+     * Replaces the callback stack once the result is complete
+     */
+    static final Node CLOSED = new Node(null, null, null);
+
+    @SuppressWarnings("rawtypes")
+    static final AtomicIntegerFieldUpdater<Result> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Result.class, "mState");
+    @SuppressWarnings("rawtypes")
+    static final AtomicReferenceFieldUpdater<Result, Node> HEAD =
+            AtomicReferenceFieldUpdater.newUpdater(Result.class, Node.class, "mHead");
+    @SuppressWarnings("rawtypes")
+    static final AtomicReferenceFieldUpdater<Result, Result> FORWARD =
+            AtomicReferenceFieldUpdater.newUpdater(Result.class, Result.class, "mForwardTo");
+    @SuppressWarnings("rawtypes")
+    static final AtomicReferenceFieldUpdater<Result, Node> RETAINED =
+            AtomicReferenceFieldUpdater.newUpdater(Result.class, Node.class, "mRetained");
+    @SuppressWarnings("rawtypes")
+    static final AtomicReferenceFieldUpdater<Result, Revalidation> REVALIDATION =
+            AtomicReferenceFieldUpdater.newUpdater(Result.class, Revalidation.class, "mRevalidation");
+
+    /**
+     * Replaces a revalidation once it was delivered
+     */
+    static final Revalidation REVALIDATED = new Revalidation(null, false, false);
+
+    static final ThreadLocal<List<BatchCallback>> sBatch = new ThreadLocal<>();
+
+    /**
+     * Start collecting BatchCallbacks on this thread instead of completing them immediately
+     */
+    static void beginBatch() {
+        sBatch.set(new ArrayList<BatchCallback>());
+    }
+
+    /**
+     * Complete the batch for every BatchCallback that received a result since beginBatch()
+     */
+    static void endBatch() {
+        List<BatchCallback> batch = sBatch.get();
+        sBatch.remove();
+        if (batch == null)
+            return;
+        for (int i = 0, len = batch.size(); i < len; i++) {
+            try {
+                batch.get(i).onBatchComplete();
+            } catch (Exception err) {
+                Log.e(CallbackAdapter.TAG, "onBatchComplete", err);
+            }
+        }
+    }
+
+    static void onDelivered(SimpleCallback<?> callback) {
+        if (!(callback instanceof BatchCallback))
+            return;
+        BatchCallback batchCallback = (BatchCallback) callback;
+        List<BatchCallback> batch = sBatch.get();
+        if (batch == null) {
+            batchCallback.onBatchComplete();
+            return;
+        }
+        for (int i = 0, len = batch.size(); i < len; i++) {
+            if (batch.get(i) == batchCallback)
+                return;
+        }
+        batch.add(batchCallback);
+    }
+
+    /**
+     * Combine the results into a single Result holding a list of their values, in the same
+     * order.  Fails with the first exception delivered to any of them.
+     *
+     * Nothing waits on the results, the combined Result is delivered on the thread that
+     * delivers the last of them.
+     */
+    @SafeVarargs
+    public static <T> Result<List<T>> allOf(Result<? extends T>... results) {
+        return allOf(Arrays.asList(results));
+    }
 
+    /**
+     * Combine the results into a single Result holding a list of their values, in the same
+     * order.  Fails with the first exception delivered to any of them.
+     *
+     * Nothing waits on the results, the combined Result is delivered on the thread that
+     * delivers the last of them.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Result<List<T>> allOf(List<? extends Result<? extends T>> results) {
+        final int size = results.size();
+        if (size == 0)
+            return new Result<>(Collections.<T>emptyList());
+        final Result<List<T>> combined = new Result<>();
+        final AtomicReferenceArray<T> values = new AtomicReferenceArray<>(size);
+        final AtomicInteger remaining = new AtomicInteger(size);
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            ((Result<T>) results.get(i)).addCallback(new SimpleCallback<T>() {
+                @Override
+                public void onResult(T result, Exception err, Object handle) {
+                    if (err != null) {
+                        if (failed.compareAndSet(false, true))
+                            combined.onException(err);
+                        return;
+                    }
+                    values.set(index, result);
+                    if (remaining.decrementAndGet() == 0 && !failed.get()) {
+                        List<T> list = new ArrayList<>(size);
+                        for (int v = 0; v < size; v++)
+                            list.add(values.get(v));
+                        combined.onResult(list);
+                    }
+                }
+            });
+        }
+        return combined;
+    }
+
+    /**
+     * The value of the first of the results to succeed.  Fails with the last exception
+     * if all of them fail.
+     */
+    @SafeVarargs
+    public static <T> Result<T> anyOf(Result<? extends T>... results) {
+        return anyOf(Arrays.asList(results));
+    }
+
+    /**
+     * The value of the first of the results to succeed.  Fails with the last exception
+     * if all of them fail.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Result<T> anyOf(List<? extends Result<? extends T>> results) {
+        final int size = results.size();
+        final Result<T> combined = new Result<>();
+        if (size == 0) {
+            combined.onException(new NoSuchElementException("No results"));
+            return combined;
+        }
+        final AtomicInteger remaining = new AtomicInteger(size);
+        final AtomicBoolean done = new AtomicBoolean();
+        for (int i = 0; i < size; i++) {
+            ((Result<T>) results.get(i)).addCallback(new SimpleCallback<T>() {
+                @Override
+                public void onResult(T result, Exception err, Object handle) {
+                    if (err == null) {
+                        if (done.compareAndSet(false, true))
+                            combined.onResult(result);
+                    } else if (remaining.decrementAndGet() == 0 && done.compareAndSet(false, true)) {
+                        combined.onException(err);
+                    }
+                }
+            });
+        }
+        return combined;
+    }
+
+    /**
+     * Combine the values of two results once both are delivered.  Fails with the first
+     * exception delivered to either, or thrown by the combiner.
+     */
+    @SuppressWarnings("unchecked")
+    public static <A, B, C> Result<C> zip(final Result<A> first, final Result<B> second,
+                                          final Combiner<A, B, C> combiner) {
+        final Result<C> combined = new Result<>();
+        final AtomicInteger remaining = new AtomicInteger(2);
+        final AtomicBoolean failed = new AtomicBoolean();
+        SimpleCallback<Object> callback = new SimpleCallback<Object>() {
+            @Override
+            public void onResult(Object result, Exception err, Object handle) {
+                if (err != null) {
+                    if (failed.compareAndSet(false, true))
+                        combined.onException(err);
+                    return;
+                }
+                if (remaining.decrementAndGet() != 0 || failed.get())
+                    return;
+                C value;
+                try {
+                    value = combiner.combine(first.uncheckedGet(), second.uncheckedGet());
+                } catch (Exception e) {
+                    combined.onException(e);
+                    return;
+                }
+                combined.onResult(value);
+            }
+        };
+        ((Result) first).addCallback(callback);
+        ((Result) second).addCallback(callback);
+        return combined;
+    }
+
+    volatile int mState;
+    volatile Node mHead;
     T mData;
     Exception mException;
-    boolean mDataSet;
+    volatile boolean mDataSet;
     boolean mFromCache;
-    Object mObjectHandle;
-    ContextHandle mContextHandle;
-    Result<T> mForwardTo;
+    volatile ContextHandle mContextHandle;
+    volatile Result<T> mForwardTo;
+    volatile Object mFork;
+    volatile boolean mRetain;
+    volatile boolean mUpdate;
+    volatile Node mRetained;
+    volatile Revalidation mRevalidation;
 
     public Result() {
     }
@@ -43,17 +258,41 @@ public class Result<T> {
     public Result(T data) {
         mData = data;
         mDataSet = true;
+        mState = COMPLETE;
+        mHead = CLOSED;
     }
 
     public Result<T> forward(Result<T> forwardTo) {
-        synchronized (this) {
-            mForwardTo = forwardTo;
-            if (mDataSet)
-                mForwardTo.onResult(mData, mFromCache);
-        }
+        mForwardTo = forwardTo;
+        if (mDataSet)
+            forward();
         return this;
     }
 
+    /**
+     * Forward the completed result, once, to the Result it is forwarded to
+     */
+    @SuppressWarnings("unchecked")
+    private void forward() {
+        Result<T> forwardTo = mForwardTo;
+        if (forwardTo == null || !FORWARD.compareAndSet(this, forwardTo, null))
+            return;
+        if (mException != null)
+            forwardTo.onExceptionWithResult(mException, mData, mFromCache);
+        else
+            forwardTo.onResult(mData, mFromCache);
+    }
+
+    /**
+     * Returns true if this is a second delivery of the result, with a value revalidated
+     * after a stale one was delivered
+     *
+     * @see Task#onStaleResult(Object)
+     */
+    public boolean isUpdate() {
+        return mUpdate;
+    }
+
     /**
      * Returns true if the result is from a cache
      *
@@ -78,13 +317,11 @@ public class Result<T> {
      * @return The result
      */
     public T get() {
-        synchronized (this) {
-            if (!mDataSet)
-                throw new IllegalStateException("Result Not Ready");
-            if (mException != null)
-                throw new RuntimeException(mException);
-            return mData;
-        }
+        if (!mDataSet)
+            throw new IllegalStateException("Result Not Ready");
+        if (mException != null)
+            throw new RuntimeException(mException);
+        return mData;
     }
 
     /**
@@ -129,33 +366,7 @@ public class Result<T> {
     }
 
     public <C> Result<C> continueWith(final ChainedTask<C, T> task, final ChainedTask<C, T> errorTask, final TaskPool taskPool) {
-        final Result<C> nextResult = new Result<>();
-        addCallback(new CallbackAdapter<T>() {
-            @Override
-            public void onResult(T result) {
-                if (task != null) {
-                    task.chainedResult = Result.this;
-                    taskPool.execute(task).forward(nextResult);
-                } else {
-                    try {
-                        nextResult.onResult((C) result);
-                    } catch (ClassCastException err) {
-                        nextResult.onException(err);
-                    }
-                }
-            }
-
-            @Override
-            public void onException(Exception err) {
-                if (errorTask != null) {
-                    errorTask.chainedResult = Result.this;
-                    taskPool.execute(errorTask).forward(nextResult);
-                } else {
-                    nextResult.onException(err);
-                }
-            }
-        });
-        return nextResult;
+        return continueWith(null, task, errorTask, taskPool);
     }
 
     public <C> Result<C> continueWith(final ContextHandle handle, final ChainedTask<C, T> task) {
@@ -170,33 +381,30 @@ public class Result<T> {
         return continueWith(handle, task, task, taskPool);
     }
 
+    /**
+     * Run the task on the pool once this result is delivered.  When this result comes from the
+     * same pool, the task runs on the worker that finished this one instead of going back
+     * through the pool's looper and queue.
+     *
+     * @see #deliverOn(Executor)
+     */
     public <C> Result<C> continueWith(final ContextHandle handle, final ChainedTask<C, T> task, final ChainedTask<C, T> errorTask, final TaskPool taskPool) {
         final Result<C> nextResult = new Result<>();
-        addCallback(new CallbackAdapter<T>() {
-            @Override
-            public void onResult(T result) {
-                if (task != null) {
-                    task.chainedResult = Result.this;
-                    taskPool.execute(handle, task).forward(nextResult);
-                } else {
-                    try {
-                        nextResult.onResult((C) result);
-                    } catch (ClassCastException err) {
-                        nextResult.onException(err);
-                    }
-                }
-            }
+        addCallback(new Continuation<>(this, nextResult, handle, task, errorTask, taskPool));
+        return nextResult;
+    }
 
-            @Override
-            public void onException(Exception err) {
-                if (errorTask != null) {
-                    errorTask.chainedResult = Result.this;
-                    taskPool.execute(handle, errorTask).forward(nextResult);
-                } else {
-                    nextResult.onException(err);
-                }
-            }
-        });
+    /**
+     * Hop to the executor, the returned Result is delivered on it once this one is.
+     *
+     * Continuations of the same pool run on the worker that finished the previous task, use
+     * this to explicitly move the rest of a chain somewhere else.
+     *
+     * @param executor Where the returned Result is delivered
+     */
+    public Result<T> deliverOn(Executor executor) {
+        Result<T> nextResult = new Result<>();
+        addCallback(new Hop<>(this, nextResult, executor));
         return nextResult;
     }
 
@@ -218,27 +426,45 @@ public class Result<T> {
      * @return The Result
      */
     public Result<T> addCallback(SimpleCallback<T> callback, Object handle) {
-        synchronized (this) {
-            if (mDataSet) {
-                if (callback instanceof Callback) {
-                    Callback<T> cb = (Callback<T>) callback;
-                    cb.setResult(this);
-                    if (mException != null)
-                        cb.onException(mException, handle);
-                    else
-                        cb.onResult(mData, handle);
-                } else {
-                    callback.onResult(mData, mException, handle);
-                }
-                notifyAll();
-            } else {
-                mObjectHandle = handle;
-                mCallbacks.add(callback);
-            }
+        if (push(new Node(callback, handle, null)))
+            return this;
+        if (mRetain && retains(callback))
+            push(RETAINED, new Node(callback, handle, null));
+        if (callback instanceof Callback) {
+            Callback<T> cb = (Callback<T>) callback;
+            cb.setResult(this);
+            if (mException != null)
+                cb.onException(mException, handle);
+            else
+                cb.onResult(mData, handle);
+        } else {
+            callback.onResult(mData, mException, handle);
         }
+        onDelivered(callback);
         return this;
     }
 
+    /**
+     * Push a callback or waiter onto the stack
+     *
+     * @return False if the result is already complete and the node wasn't pushed
+     */
+    private boolean push(Node node) {
+        return push(HEAD, node);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private boolean push(AtomicReferenceFieldUpdater<Result, Node> stack, Node node) {
+        for (;;) {
+            Node head = stack.get(this);
+            if (head == CLOSED)
+                return false;
+            node.next = head;
+            if (stack.compareAndSet(this, head, node))
+                return true;
+        }
+    }
+
     /**
      * Deliver a result
      *
@@ -255,37 +481,83 @@ public class Result<T> {
      * @param fromCache Whether the result is from a cache
      */
     public void onResult(T data, boolean fromCache) {
-        synchronized (this) {
-            if (mDataSet)
-                throw new IllegalStateException("Data already set");
+        if (!STATE.compareAndSet(this, PENDING, COMPLETING))
+            throw new IllegalStateException("Data already set");
+        mData = data;
+        mFromCache = fromCache;
+        mDataSet = true;
+        complete();
+    }
+
+    /**
+     * Deliver a stale result now and keep the Callbacks for the revalidated one
+     *
+     * @return False if the result was already delivered
+     * @see #onRevalidated(Object, boolean, boolean)
+     */
+    boolean onStaleResult(T data) {
+        if (!STATE.compareAndSet(this, PENDING, COMPLETING))
+            return false;
+        mRetain = true;
+        mData = data;
+        mFromCache = true;
+        mDataSet = true;
+        complete();
+        return true;
+    }
+
+    /**
+     * Deliver the revalidated result to the Callbacks that received the stale one, if it
+     * changed.  If the stale result never went out, this is delivered as the only result.
+     * If the stale result is still being delivered, whichever thread finishes last delivers
+     * the revalidated one.
+     */
+    void onRevalidated(T data, boolean fromCache, boolean changed) {
+        if (STATE.compareAndSet(this, PENDING, COMPLETING)) {
             mData = data;
-            mDataSet = true;
             mFromCache = fromCache;
-            boolean released = mContextHandle != null && mContextHandle.get() == null;
-            for (SimpleCallback<T> cb : mCallbacks) {
-                if (cb instanceof Callback) {
-                    Callback<T> callback = (Callback<T>) cb;
-                    callback.setResult(this);
-                    if (released) {
-                        callback.onContextReleased(mData, mObjectHandle);
-                    } else {
-                        if (fromCache)
-                            callback.onCacheResult(mData, mObjectHandle);
-                        else
-                            callback.onResult(mData, mObjectHandle);
-                    }
-                } else {
-                    cb.onResult(mData, mException, mObjectHandle);
-                }
-            }
-            mObjectHandle = null;
-            mCallbacks.clear();
-            notifyAll();
+            mDataSet = true;
+            complete();
+            return;
         }
-        synchronized (this) {
-            if (mForwardTo != null)
-                mForwardTo.onResult(mData, fromCache);
+        if (REVALIDATION.compareAndSet(this, null, new Revalidation(data, fromCache, changed)))
+            revalidate();
+    }
+
+    /**
+     * Deliver the revalidation once both it arrived and the stale result is complete
+     */
+    @SuppressWarnings("unchecked")
+    private void revalidate() {
+        Revalidation revalidation = mRevalidation;
+        if (mState != COMPLETE || revalidation == null || revalidation == REVALIDATED
+                || !REVALIDATION.compareAndSet(this, revalidation, REVALIDATED))
+            return;
+        Node retained = RETAINED.getAndSet(this, CLOSED);
+        if (!revalidation.changed || retained == null || retained == CLOSED)
+            return;
+        mData = (T) revalidation.data;
+        mFromCache = revalidation.fromCache;
+        mUpdate = true;
+        Node ordered = null;
+        while (retained != null) {
+            Node next = retained.next;
+            retained.next = ordered;
+            ordered = retained;
+            retained = next;
         }
+        if (isReleased())
+            return;
+        for (Node node = ordered; node != null; node = node.next)
+            deliver(node.callback, node.handle, false);
+    }
+
+    /**
+     * Only Callbacks receive revalidated results, SimpleCallbacks and continuations complete
+     * other Results which can only be delivered once
+     */
+    private static boolean retains(SimpleCallback<?> callback) {
+        return callback instanceof Callback && !(callback instanceof InlineCallback);
     }
 
     /**
@@ -298,36 +570,109 @@ public class Result<T> {
     }
 
     public void onExceptionWithResult(Exception err, T result, boolean fromCache) {
-        synchronized (this) {
-            if (mDataSet)
-                throw new IllegalStateException("Data already set");
-            mData = result;
-            mFromCache = fromCache;
-            mDataSet = true;
-            mException = err;
-            boolean released = mContextHandle != null && mContextHandle.get() == null;
-            for (SimpleCallback<T> cb : mCallbacks) {
-                if (cb instanceof Callback) {
-                    Callback<T> callback = (Callback<T>) cb;
-                    callback.setResult(this);
-                    if (released)
-                        callback.onContextReleased(mException, mObjectHandle);
-                    else
-                        callback.onException(mException, mObjectHandle);
-                } else {
-                    cb.onResult(mData, mException, mObjectHandle);
-                }
+        if (!STATE.compareAndSet(this, PENDING, COMPLETING))
+            throw new IllegalStateException("Data already set");
+        mData = result;
+        mFromCache = fromCache;
+        mException = err;
+        mDataSet = true;
+        complete();
+    }
+
+    /**
+     * Close the callback stack and deliver to the callbacks in the order they were added,
+     * then wake the waiting threads and forward the result
+     */
+    private void complete() {
+        Executor deferred = TaskPool.deferredExecutor();
+        Node node = HEAD.getAndSet(this, CLOSED);
+        Node ordered = null;
+        while (node != null) {
+            Node next = node.next;
+            node.next = ordered;
+            ordered = node;
+            node = next;
+        }
+        try {
+            boolean released = isReleased();
+            for (node = ordered; node != null; node = node.next) {
+                if (node.callback == null)
+                    continue;
+                if (deferred != null && !(node.callback instanceof InlineCallback))
+                    deferred.execute(new Deferred(this, node.callback, node.handle));
+                else
+                    deliver(node.callback, node.handle, released);
+            }
+        } finally {
+            if (mRetain)
+                retain(ordered);
+            mState = COMPLETE;
+            for (node = ordered; node != null; node = node.next) {
+                if (node.waiter != null)
+                    LockSupport.unpark(node.waiter);
             }
-            mObjectHandle = null;
-            mCallbacks.clear();
-            notifyAll();
         }
-        synchronized (this) {
-            if (mForwardTo != null)
-                mForwardTo.onExceptionWithResult(err, result, fromCache);
+        if (mRetain)
+            revalidate();
+        forward();
+    }
+
+    /**
+     * Keep the Callbacks that received a stale result for the revalidated one
+     */
+    private void retain(Node ordered) {
+        for (Node node = ordered; node != null; node = node.next) {
+            if (node.callback != null && retains(node.callback))
+                push(RETAINED, new Node(node.callback, node.handle, null));
         }
     }
 
+    /**
+     * @return True if a callback of this result, or of a result it forwards to, can be
+     *         delivered on a worker thread
+     */
+    boolean hasInlineCallback() {
+        for (Result<?> result = this; result != null; result = result.mForwardTo) {
+            for (Node node = result.mHead; node != null && node != CLOSED; node = node.next) {
+                if (node.callback instanceof InlineCallback)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isReleased() {
+        ContextHandle contextHandle = mContextHandle;
+        return contextHandle != null && contextHandle.get() == null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(SimpleCallback cb, Object handle, boolean released) {
+        StallWatchdog.Watch watch = StallWatchdog.current();
+        long start = watch != null ? System.nanoTime() : 0;
+        if (cb instanceof Callback) {
+            Callback<T> callback = (Callback<T>) cb;
+            callback.setResult(this);
+            if (mException != null) {
+                if (released)
+                    callback.onContextReleased(mException, handle);
+                else
+                    callback.onException(mException, handle);
+            } else if (released) {
+                callback.onContextReleased(mData, handle);
+            } else if (mFromCache) {
+                callback.onCacheResult(mData, handle);
+            } else {
+                callback.onResult(mData, handle);
+            }
+        } else {
+            cb.onResult(mData, mException, handle);
+        }
+        onDelivered(cb);
+        if (watch != null)
+            watch.onCallback(cb, System.nanoTime() - start);
+    }
+
     /**
      * Synchronously wait for the result to be delivered.
      *
@@ -335,16 +680,22 @@ public class Result<T> {
      * @throws TimeoutException
      */
     public void syncWait(long millis) throws TimeoutException {
-        synchronized (this) {
-            if (!mDataSet) {
-                try {
-                    long now = System.currentTimeMillis();
-                    wait(millis);
-                    if (!mDataSet && (now + millis) < System.currentTimeMillis()) {
-                        throw new TimeoutException();
-                    }
-                } catch (InterruptedException err) {
-                }
+        if (mDataSet || !push(new Node(null, null, Thread.currentThread())))
+            return;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (!mDataSet) {
+            if (millis > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    throw new TimeoutException();
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+            if (Thread.interrupted()) {
+                // keep the interrupt for the caller to see
+                Thread.currentThread().interrupt();
+                return;
             }
         }
     }
@@ -361,6 +712,165 @@ public class Result<T> {
         return this;
     }
 
+    /**
+     * Combines the values of two results
+     *
+     * @see Result#zip(Result, Result, Combiner)
+     */
+    public interface Combiner<A, B, C> {
+
+        C combine(A first, B second) throws Exception;
+
+    }
+
+    /**
+     * Implemented by a callback that doesn't need the pool's looper and can be delivered on
+     * the worker thread that finished the task, for example one that hands the result to
+     * another Result or executor.
+     *
+     * When a result delivered on a worker also has other callbacks, those are still delivered
+     * on the pool's looper.
+     */
+    public interface InlineCallback {
+    }
+
+    /**
+     * Runs a ChainedTask once the previous result is delivered
+     */
+    static final class Continuation<C, T> extends CallbackAdapter<T> implements InlineCallback {
+
+        final Result<T> previous;
+        final Result<C> nextResult;
+        final ContextHandle handle;
+        final ChainedTask<C, T> task;
+        final ChainedTask<C, T> errorTask;
+        final TaskPool taskPool;
+
+        Continuation(Result<T> previous, Result<C> nextResult, ContextHandle handle,
+                     ChainedTask<C, T> task, ChainedTask<C, T> errorTask, TaskPool taskPool) {
+            this.previous = previous;
+            this.nextResult = nextResult;
+            this.handle = handle;
+            this.task = task;
+            this.errorTask = errorTask;
+            this.taskPool = taskPool;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onResult(T result) {
+            if (task != null) {
+                task.chainedResult = previous;
+                taskPool.executeFused(handle, task, nextResult);
+            } else {
+                try {
+                    nextResult.onResult((C) result);
+                } catch (ClassCastException err) {
+                    nextResult.onException(err);
+                }
+            }
+        }
+
+        @Override
+        public void onException(Exception err) {
+            if (errorTask != null) {
+                errorTask.chainedResult = previous;
+                taskPool.executeFused(handle, errorTask, nextResult);
+            } else {
+                nextResult.onException(err);
+            }
+        }
+
+    }
+
+    /**
+     * Completes the next result on an executor
+     */
+    static final class Hop<T> implements SimpleCallback<T>, InlineCallback, Runnable {
+
+        final Result<T> previous;
+        final Result<T> nextResult;
+        final Executor executor;
+
+        Hop(Result<T> previous, Result<T> nextResult, Executor executor) {
+            this.previous = previous;
+            this.nextResult = nextResult;
+            this.executor = executor;
+        }
+
+        @Override
+        public void onResult(T result, Exception err, Object handle) {
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            Exception err = previous.getException();
+            if (err != null)
+                nextResult.onExceptionWithResult(err, previous.uncheckedGet(), previous.isFromCache());
+            else
+                nextResult.onResult(previous.uncheckedGet(), previous.isFromCache());
+        }
+
+    }
+
+    /**
+     * Delivers a callback that was skipped while delivering on a worker
+     */
+    static final class Deferred implements Runnable {
+
+        final Result<?> result;
+        final SimpleCallback callback;
+        final Object handle;
+
+        Deferred(Result<?> result, SimpleCallback callback, Object handle) {
+            this.result = result;
+            this.callback = callback;
+            this.handle = handle;
+        }
+
+        @Override
+        public void run() {
+            result.deliver(callback, handle, result.isReleased());
+        }
+
+    }
+
+    /**
+     * A revalidated result that arrived while the stale one was still being delivered
+     */
+    static final class Revalidation {
+
+        final Object data;
+        final boolean fromCache;
+        final boolean changed;
+
+        Revalidation(Object data, boolean fromCache, boolean changed) {
+            this.data = data;
+            this.fromCache = fromCache;
+            this.changed = changed;
+        }
+
+    }
+
+    /**
+     * A callback, or a thread waiting in syncWait, on the stack of a pending Result
+     */
+    static final class Node {
+
+        final SimpleCallback callback;
+        final Object handle;
+        final Thread waiter;
+        Node next;
+
+        Node(SimpleCallback callback, Object handle, Thread waiter) {
+            this.callback = callback;
+            this.handle = handle;
+            this.waiter = waiter;
+        }
+
+    }
+
     public interface SimpleCallback<T> {
 
         void onResult(T result, Exception err, Object handle);
@@ -396,6 +906,21 @@ public class Result<T> {
 
     }
 
+    /**
+     * Implemented by a callback that wants to apply the results delivered to it together,
+     * for example to notify an adapter once for many results.
+     *
+     * When a TaskPool delivers results in frame batches, this is called once per frame after
+     * all of the frame's results were delivered.  Otherwise it is called after each result.
+     *
+     * @see TaskPool.Builder#withFrameBatching(boolean)
+     */
+    public interface BatchCallback {
+
+        void onBatchComplete();
+
+    }
+
     /**
      * A callback adapter that allows for only overriding certain methods
      *
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.os.Looper;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the delivery of results, and each of their callbacks, on the main looper and reports
+ * the ones that take longer than the frame budget.
+ *
+ * The main thread's stack is sampled from the scheduler thread once a delivery runs past the
+ * budget, so the report shows where the time is going while it's still being spent.
+ *
+ * @see TaskPool.Builder#withStallWatchdog(long, float)
+ */
+final class StallWatchdog {
+
+    static final ThreadLocal<Watch> CURRENT = new ThreadLocal<>();
+
+    private final TaskPool pool;
+    private final long budgetNanos;
+    private final float sampleRate;
+    private final Random random = new Random();
+
+    StallWatchdog(TaskPool pool, long budgetMillis, float sampleRate) {
+        this.pool = pool;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @return The watch of the delivery running on the current thread, or null
+     */
+    static Watch current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Start timing the delivery of the task's result, if it's on the main looper and sampled
+     *
+     * @return The watch to pass to end(Watch), or null
+     */
+    Watch begin(Task<?> task) {
+        return begin(task.getClass(), task.getLogKey());
+    }
+
+    /**
+     * Start timing a delivery made on behalf of a task of the class, for example a stale
+     * result or a callback posted from a fused delivery
+     *
+     * @return The watch to pass to end(Watch), or null
+     */
+    Watch begin(Class<?> taskClass, String logKey) {
+        Looper mainLooper = Looper.getMainLooper();
+        if (Looper.myLooper() != mainLooper || CURRENT.get() != null)
+            return null;
+        if (sampleRate < 1 && random.nextFloat() >= sampleRate)
+            return null;
+        Watch watch = new Watch(taskClass, logKey, mainLooper.getThread());
+        watch.sampler = TaskPool.getScheduler().schedule(watch, budgetNanos, TimeUnit.NANOSECONDS);
+        CURRENT.set(watch);
+        return watch;
+    }
+
+    void end(Watch watch) {
+        CURRENT.remove();
+        long duration = System.nanoTime() - watch.start;
+        watch.done = true;
+        watch.sampler.cancel(false);
+        if (duration < budgetNanos)
+            return;
+        TaskStall stall = new TaskStall(watch.taskClass, watch.logKey,
+                TimeUnit.NANOSECONDS.toMillis(duration), watch.callbackClass,
+                TimeUnit.NANOSECONDS.toMillis(watch.callbackNanos), watch.callbacks, watch.stackTrace);
+        TaskPool.LOG.w("Stalled the main thread: " + stall);
+        TaskPoolListener listener = TaskPool.LISTENER;
+        if (listener instanceof TaskPoolMonitor)
+            ((TaskPoolMonitor) listener).onStall(pool, stall);
+    }
+
+    /**
+     * The delivery of one result, runs on the scheduler to sample the stack once the
+     * budget is spent
+     */
+    static final class Watch implements Runnable {
+
+        final Class<?> taskClass;
+        final String logKey;
+        final Thread thread;
+        final long start = System.nanoTime();
+        ScheduledFuture<?> sampler;
+        volatile boolean done;
+        volatile StackTraceElement[] stackTrace;
+        Class<?> callbackClass;
+        long callbackNanos;
+        int callbacks;
+
+        Watch(Class<?> taskClass, String logKey, Thread thread) {
+            this.taskClass = taskClass;
+            this.logKey = logKey;
+            this.thread = thread;
+        }
+
+        /**
+         * Record the time spent in a callback, the slowest is reported
+         */
+        void onCallback(Object callback, long nanos) {
+            callbacks++;
+            if (nanos > callbackNanos) {
+                callbackNanos = nanos;
+                callbackClass = callback.getClass();
+            }
+        }
+
+        @Override
+        public void run() {
+            StackTraceElement[] stackTrace = thread.getStackTrace();
+            if (!done)
+                this.stackTrace = stackTrace;
+        }
+
+    }
+
+}
@@ -34,6 +34,10 @@ public abstract class Task<T> implements Runnable {
 
     private static final Log LOG = Logs.newLog(Task.class);
 
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_HIGH = 10;
+
     private static final AtomicInteger sJobId = new AtomicInteger(1);
 
     private TaskPool pool;
@@ -43,9 +47,13 @@ public abstract class Task<T> implements Runnable {
     private Exception taskException;
     private boolean fromCache;
     private boolean resultSet;
+    private boolean staleDelivered;
+    private T staleResult;
 
     private final AtomicBoolean interrupted = new AtomicBoolean(false);
-    private Thread currentThread;
+    private volatile boolean timedOut;
+    private volatile Thread currentThread;
+    volatile TaskPool.TaskRunnable runnable;
 
     /**
      * Ability to change how we represent this task in logs
@@ -56,6 +64,52 @@ public abstract class Task<T> implements Runnable {
         return getId();
     }
 
+    /**
+     * The dispatch priority of this task.  Higher priority tasks are taken from the queue first,
+     * lower priority tasks age while waiting so that they are eventually run.
+     *
+     * @return The priority, PRIORITY_NORMAL by default
+     */
+    public int getPriority() {
+        return PRIORITY_NORMAL;
+    }
+
+    /**
+     * When true, and a task with the same ID is already running, this task is not run.
+     * Instead its Result receives the result of the running task.
+     *
+     * Only use this for idempotent tasks, such as reads.
+     *
+     * @see TaskPool.Builder#withCoalescing(boolean)
+     */
+    public boolean shouldCoalesce() {
+        return false;
+    }
+
+    /**
+     * The time budget of this task, measured from when it is executed.  Once it is spent the
+     * task is removed from the queue, or interrupted if it is running, and fails with a
+     * TimeoutException.  Tasks waiting behind a task with the same ID fail as soon as they
+     * are dispatched.
+     *
+     * @return The timeout in milliseconds, 0 (the default) for no deadline
+     */
+    public long getTimeout() {
+        return 0;
+    }
+
+    /**
+     * How long a successful result of this task is kept in memory by a pool built with
+     * TaskPool.Builder#withMemoization(int).  While it is kept, executing a task of the same
+     * class with the same ID completes immediately with the result, flagged as from cache,
+     * without running.  The result is shared, so it should be immutable.
+     *
+     * @return The time to live in milliseconds, 0 (the default) to not memoize
+     */
+    public long getMemoizeTtl() {
+        return 0;
+    }
+
     public boolean isRunning() {
         return TaskPool.isRunning(pool, this);
     }
@@ -69,7 +123,7 @@ public abstract class Task<T> implements Runnable {
         currentThread = Thread.currentThread();
         try {
             if (interrupted.get()) {
-                onException(new InterruptedException());
+                onException(newInterruptedException());
                 return;
             }
             Context context = handle.get();
@@ -85,6 +139,8 @@ public abstract class Task<T> implements Runnable {
                     LOG.e("unhandled throwable", err);
                     onException(new Exception(err));
                 }
+                if (timedOut)
+                    onException(newInterruptedException());
             } else {
                 LOG.i("Context Handle is released, not running task");
             }
@@ -125,14 +181,70 @@ public abstract class Task<T> implements Runnable {
         return interrupted.get();
     }
 
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Interrupt the task.  A queued task is removed from its pool's queue and fails with an
+     * InterruptedException, a running task has its thread interrupted.
+     */
     public void interrupt() {
-        if (!interrupted.get()) {
-            interrupted.set(true);
-            if (currentThread != null && !currentThread.isInterrupted())
-                currentThread.interrupt();
+        interrupt(false);
+    }
+
+    final void interrupt(boolean timeout) {
+        if (timeout)
+            timedOut = true;
+        if (interrupted.compareAndSet(false, true)) {
+            Thread thread = currentThread;
+            if (thread != null && !thread.isInterrupted())
+                thread.interrupt();
+            TaskPool pool = this.pool;
+            TaskPool.TaskRunnable runnable = this.runnable;
+            if (pool != null && runnable != null)
+                pool.dequeue(runnable, this);
         }
     }
 
+    /**
+     * Interrupt the task if it hasn't started running yet
+     */
+    final void cancel() {
+        if (currentThread == null)
+            interrupt();
+    }
+
+    final Exception newInterruptedException() {
+        if (timedOut)
+            return new TimeoutException("Task " + getLogKey() + " timed out after " + getTimeout() + "ms");
+        return new InterruptedException();
+    }
+
+    /**
+     * Fork a child task from within run(Context).  The child uses this task's ContextHandle.
+     *
+     * @param child The child task
+     * @return The Result of the child, pass to join(Result) to wait for it
+     * @see TaskPool.Builder#withWorkStealing(boolean)
+     */
+    protected final <C> Result<C> fork(Task<C> child) {
+        if (pool == null)
+            throw new IllegalStateException("Not attached to a TaskPool");
+        return pool.fork(handle, child);
+    }
+
+    /**
+     * Wait for a forked child task and return its result.  On a work stealing pool the
+     * worker keeps running other tasks while it waits.
+     *
+     * @param forked The Result returned from fork(Task)
+     * @return The result of the child task
+     */
+    protected final <C> C join(Result<C> forked) {
+        return TaskPool.join(forked);
+    }
+
     /**
      * Inform the task that it has completed.
      */
@@ -156,6 +268,27 @@ public abstract class Task<T> implements Runnable {
         this.fromCache = fromCache;
     }
 
+    /**
+     * Deliver a cached result now and keep running to revalidate it.  Unless the task
+     * completes with a different result, nothing more is delivered.  Otherwise the new result
+     * is delivered again, as an update, to the Callbacks of the same Result.
+     *
+     * @see Result#isUpdate()
+     */
+    protected final void onStaleResult(T result) {
+        onComplete(result, true);
+        staleDelivered = true;
+        staleResult = result;
+        TaskPool pool = this.pool;
+        TaskPool.TaskRunnable runnable = this.runnable;
+        if (pool != null && runnable != null)
+            pool.deliverStale(runnable, this.result, result);
+    }
+
+    boolean isStaleDelivered() {
+        return staleDelivered;
+    }
+
     /**
      * Inform the task that it has completed, but with an exception
      */
@@ -193,6 +326,34 @@ public abstract class Task<T> implements Runnable {
         onDiscarded();
     }
 
+    /**
+     * Inform the task that it has been coalesced with a running task with the same ID
+     *
+     * @return The Result that should receive the running task's result
+     */
+    final Result<T> onCoalesced(TaskPool.TaskRunnable runnable) {
+        LOG.i("Coalesced " + getLogKey());
+        Result<T> result = this.result;
+        runnable.task = null;
+        onDetach();
+        onCoalesced();
+        return result;
+    }
+
+    /**
+     * Run the task on the calling thread, outside of a TaskPool, and detach it
+     *
+     * @return The exception the task failed with, or null if it succeeded
+     */
+    final Exception runDetached() {
+        attach(null, ContextHandle.getApplicationHandle());
+        run();
+        Exception err = resultSet ? taskException : new IllegalStateException("Result not set");
+        onDetach();
+        onResultDelivered();
+        return err;
+    }
+
     protected final void deliverResult(TaskGcmService service) {
         if (service == null)
             throw new NullPointerException("TaskGcmService can't be null");
@@ -216,7 +377,10 @@ public abstract class Task<T> implements Runnable {
         } else {
             LOG.i("ContextHandle is released, there may not be any results to deliver");
         }
-        if (taskException != null) {
+        if (staleDelivered) {
+            boolean changed = taskException == null && taskResult != staleResult;
+            result.onRevalidated(changed ? taskResult : staleResult, !changed || fromCache, changed);
+        } else if (taskException != null) {
             if (taskResult != null)
                 result.onExceptionWithResult(taskException, taskResult, fromCache);
             else
@@ -235,6 +399,10 @@ public abstract class Task<T> implements Runnable {
 
     }
 
+    protected void onCoalesced() {
+
+    }
+
     protected void onResultDelivered() {
 
     }
@@ -243,11 +411,16 @@ public abstract class Task<T> implements Runnable {
      * Detach the task elements so the task can be recycled if necessary
      */
     private void onDetach() {
+        if (handle != null)
+            handle.unbind(this);
+        runnable = null;
         result = null;
         resultSet = false;
         taskResult = null;
         taskException = null;
         fromCache = false;
+        staleDelivered = false;
+        staleResult = null;
         handle = null;
         pool = null;
     }
@@ -266,13 +439,30 @@ public abstract class Task<T> implements Runnable {
             handle = ContextHandle.getApplicationHandle();
         this.pool = pool;
         this.handle = handle;
+        handle.bind(this);
         if (this.result == null)
             this.result = new Result<>();
-        if (handle != null)
-            this.result.withHandle(handle);
+        this.result.withHandle(handle);
         return this.result;
     }
 
+    final Result<T> getResult() {
+        return result;
+    }
+
+    final boolean isResultSuccessful() {
+        return resultSet && taskException == null;
+    }
+
+    final T getTaskResult() {
+        return taskResult;
+    }
+
+    @SuppressWarnings("unchecked")
+    final void onMemoized(Object value) {
+        onComplete((T) value, true);
+    }
+
     final Result<T> deferredAttach() {
         this.result = new Result<>();
         return this.result;
@@ -0,0 +1,290 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.support.BinaryReader;
+import android.support.BinaryWriter;
+import android.support.v4.util.ArrayMap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okio.Buffer;
+
+/**
+ * Encodes a scheduled Task as one compact binary blob: a stable type id followed by the
+ * values from Task#serialize.
+ * <br />
+ * Tasks registered with register(int, Class, Factory) are created by their factory when
+ * decoded.  Unregistered tasks fall back to their class name and reflection.
+ */
+public final class TaskCodec {
+
+    /**
+     * Creates an empty task to deserialize into
+     */
+    public interface Factory {
+
+        Task<?> newTask();
+
+    }
+
+    static final byte VERSION = 1;
+    static final int UNREGISTERED = 0;
+
+    static final byte TYPE_INT = 'I';
+    static final byte TYPE_LONG = 'J';
+    static final byte TYPE_DOUBLE = 'D';
+    static final byte TYPE_BOOLEAN = 'Z';
+    static final byte TYPE_STRING = 'S';
+    static final byte TYPE_INT_ARRAY = 'i';
+    static final byte TYPE_LONG_ARRAY = 'j';
+    static final byte TYPE_DOUBLE_ARRAY = 'd';
+    static final byte TYPE_BOOLEAN_ARRAY = 'z';
+    static final byte TYPE_STRING_ARRAY = 's';
+    static final byte TYPE_SERIALIZABLE = 'L';
+
+    private static final Map<Integer, Factory> FACTORIES = new ConcurrentHashMap<>();
+    private static final Map<Integer, Class<?>> TYPES = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Integer> TYPE_IDS = new ConcurrentHashMap<>();
+
+    private TaskCodec() {
+    }
+
+    /**
+     * Register a task type.  The type id is written in place of the class name, so it has to
+     * stay the same across releases for tasks that were already scheduled.
+     *
+     * @param typeId A stable id, other than 0
+     * @param type The task class
+     * @param factory Creates an empty task of the type
+     */
+    public static void register(int typeId, Class<? extends Task> type, Factory factory) {
+        if (typeId == UNREGISTERED)
+            throw new IllegalArgumentException("Invalid type id: " + typeId);
+        Class<?> registered = TYPES.get(typeId);
+        if (registered != null && registered != type)
+            throw new IllegalArgumentException("Type id " + typeId + " is already registered to " + registered.getName());
+        TYPES.put(typeId, type);
+        FACTORIES.put(typeId, factory);
+        TYPE_IDS.put(type, typeId);
+    }
+
+    public static byte[] encode(Task<?> task) {
+        ArrayMap<String, Object> map = new ArrayMap<>();
+        task.serialize(map);
+        try {
+            Buffer buffer = new Buffer();
+            buffer.writeByte(VERSION);
+            Integer typeId = TYPE_IDS.get(task.getClass());
+            if (typeId != null) {
+                buffer.writeInt(typeId);
+            } else {
+                buffer.writeInt(UNREGISTERED);
+                new BinaryWriter(buffer).value(task.getClass().getName());
+            }
+            writeMap(buffer, map);
+            return buffer.readByteArray();
+        } catch (IOException err) {
+            throw new RuntimeException(err);
+        }
+    }
+
+    public static Task<?> decode(byte[] data) throws Exception {
+        Buffer buffer = new Buffer().write(data);
+        byte version = buffer.readByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported version: " + version);
+        int typeId = buffer.readInt();
+        Task<?> task;
+        if (typeId == UNREGISTERED) {
+            BinaryReader reader = new BinaryReader(buffer);
+            reader.isNull();
+            task = (Task<?>) Class.forName(reader.nextString()).newInstance();
+        } else {
+            Factory factory = FACTORIES.get(typeId);
+            if (factory == null)
+                throw new IllegalStateException("Type id " + typeId + " isn't registered");
+            task = factory.newTask();
+        }
+        ArrayMap<String, Object> map = new ArrayMap<>();
+        readMap(buffer, map);
+        task.deserialize(map);
+        return task;
+    }
+
+    static void writeMap(Buffer buffer, ArrayMap<String, Object> map) throws IOException {
+        BinaryWriter writer = new BinaryWriter(buffer);
+        int count = 0;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (entry.getValue() != null)
+                count++;
+        }
+        writer.value(count);
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object v = entry.getValue();
+            if (v == null)
+                continue;
+            writer.value(entry.getKey());
+            if (v instanceof Integer) {
+                buffer.writeByte(TYPE_INT);
+                writer.value((int) v);
+            } else if (v instanceof Long) {
+                buffer.writeByte(TYPE_LONG);
+                writer.value((long) v);
+            } else if (v instanceof Double) {
+                buffer.writeByte(TYPE_DOUBLE);
+                writer.value((double) v);
+            } else if (v instanceof Boolean) {
+                buffer.writeByte(TYPE_BOOLEAN);
+                writer.value((boolean) v);
+            } else if (v instanceof String) {
+                buffer.writeByte(TYPE_STRING);
+                writer.value((String) v);
+            } else if (v instanceof int[]) {
+                int[] a = (int[]) v;
+                buffer.writeByte(TYPE_INT_ARRAY).writeInt(a.length);
+                for (int i : a)
+                    writer.value(i);
+            } else if (v instanceof long[]) {
+                long[] a = (long[]) v;
+                buffer.writeByte(TYPE_LONG_ARRAY).writeInt(a.length);
+                for (long l : a)
+                    writer.value(l);
+            } else if (v instanceof double[]) {
+                double[] a = (double[]) v;
+                buffer.writeByte(TYPE_DOUBLE_ARRAY).writeInt(a.length);
+                for (double d : a)
+                    writer.value(d);
+            } else if (v instanceof boolean[]) {
+                boolean[] a = (boolean[]) v;
+                buffer.writeByte(TYPE_BOOLEAN_ARRAY).writeInt(a.length);
+                for (boolean b : a)
+                    writer.value(b);
+            } else if (v instanceof String[]) {
+                String[] a = (String[]) v;
+                buffer.writeByte(TYPE_STRING_ARRAY).writeInt(a.length);
+                for (String s : a)
+                    writer.value(s);
+            } else if (v instanceof Serializable) {
+                Buffer serialized = new Buffer();
+                ObjectOutputStream out = new ObjectOutputStream(serialized.outputStream());
+                out.writeObject(v);
+                out.close();
+                buffer.writeByte(TYPE_SERIALIZABLE).writeInt((int) serialized.size());
+                buffer.writeAll(serialized);
+            } else {
+                throw new IllegalArgumentException("Invalid Type: " + entry.getKey());
+            }
+        }
+    }
+
+    static void readMap(Buffer buffer, ArrayMap<String, Object> map) throws IOException {
+        BinaryReader reader = new BinaryReader(buffer);
+        reader.isNull();
+        int count = reader.nextInt();
+        for (int e = 0; e < count; e++) {
+            reader.isNull();
+            String key = reader.nextString();
+            byte type = buffer.readByte();
+            switch (type) {
+                case TYPE_INT:
+                    reader.isNull();
+                    map.put(key, reader.nextInt());
+                    break;
+                case TYPE_LONG:
+                    reader.isNull();
+                    map.put(key, reader.nextLong());
+                    break;
+                case TYPE_DOUBLE:
+                    reader.isNull();
+                    map.put(key, reader.nextDouble());
+                    break;
+                case TYPE_BOOLEAN:
+                    reader.isNull();
+                    map.put(key, reader.nextBoolean());
+                    break;
+                case TYPE_STRING:
+                    map.put(key, reader.isNull() ? null : reader.nextString());
+                    break;
+                case TYPE_INT_ARRAY: {
+                    int[] a = new int[buffer.readInt()];
+                    for (int i = 0; i < a.length; i++) {
+                        reader.isNull();
+                        a[i] = reader.nextInt();
+                    }
+                    map.put(key, a);
+                    break;
+                }
+                case TYPE_LONG_ARRAY: {
+                    long[] a = new long[buffer.readInt()];
+                    for (int i = 0; i < a.length; i++) {
+                        reader.isNull();
+                        a[i] = reader.nextLong();
+                    }
+                    map.put(key, a);
+                    break;
+                }
+                case TYPE_DOUBLE_ARRAY: {
+                    double[] a = new double[buffer.readInt()];
+                    for (int i = 0; i < a.length; i++) {
+                        reader.isNull();
+                        a[i] = reader.nextDouble();
+                    }
+                    map.put(key, a);
+                    break;
+                }
+                case TYPE_BOOLEAN_ARRAY: {
+                    boolean[] a = new boolean[buffer.readInt()];
+                    for (int i = 0; i < a.length; i++) {
+                        reader.isNull();
+                        a[i] = reader.nextBoolean();
+                    }
+                    map.put(key, a);
+                    break;
+                }
+                case TYPE_STRING_ARRAY: {
+                    String[] a = new String[buffer.readInt()];
+                    for (int i = 0; i < a.length; i++) {
+                        a[i] = reader.isNull() ? null : reader.nextString();
+                    }
+                    map.put(key, a);
+                    break;
+                }
+                case TYPE_SERIALIZABLE: {
+                    Buffer serialized = new Buffer();
+                    buffer.readFully(serialized, buffer.readInt());
+                    ObjectInputStream in = new ObjectInputStream(serialized.inputStream());
+                    try {
+                        map.put(key, in.readObject());
+                    } catch (ClassNotFoundException err) {
+                        throw new IOException(err);
+                    } finally {
+                        in.close();
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Invalid Type: " + type);
+            }
+        }
+    }
+
+}
@@ -47,13 +47,20 @@ public class TaskGcmService extends GcmTaskService {
     public int onRunTask(TaskParams taskParams) {
         try {
             Bundle bundle = taskParams.getExtras();
-            String taskName = bundle.getString(TaskScheduler.TASK_NAME);
-            Task task = (Task) Class.forName(taskName).newInstance();
-            ArrayMap<String, Object> map = new ArrayMap<>(bundle.size());
-            for (String key : bundle.keySet()) {
-                map.put(key, bundle.get(key));
+            Task task;
+            byte[] data = bundle.getByteArray(TaskScheduler.TASK_DATA);
+            if (data != null) {
+                task = TaskCodec.decode(data);
+            } else {
+                // scheduled before tasks were encoded
+                String taskName = bundle.getString(TaskScheduler.TASK_NAME);
+                task = (Task) Class.forName(taskName).newInstance();
+                ArrayMap<String, Object> map = new ArrayMap<>(bundle.size());
+                for (String key : bundle.keySet()) {
+                    map.put(key, bundle.get(key));
+                }
+                task.deserialize(map);
             }
-            task.deserialize(map);
             if (task.isRunning())
                 return GcmNetworkManager.RESULT_RESCHEDULE;
             task.attach(null, ContextHandle.getApplicationHandle());
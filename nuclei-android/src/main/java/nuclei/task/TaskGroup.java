@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nuclei.ui.Destroyable;
+
+/**
+ * A set of tasks executed on a TaskPool that succeed, fail or are cancelled together.
+ * <br />
+ * The group's Result is delivered once done() has been called and every task in the group
+ * has delivered its result.  The first task to fail cancels the rest of the group and its
+ * exception becomes the group's result.
+ * <br />
+ * Releasing the group's ContextHandle, or passing the group to a LifecycleManager, cancels
+ * all of its tasks when the screen goes away.
+ *
+ * @see TaskPool#newGroup(ContextHandle)
+ */
+public final class TaskGroup implements Destroyable {
+
+    private final TaskPool pool;
+    private final ContextHandle handle;
+    private final Set<Task<?>> tasks = Collections.newSetFromMap(new ConcurrentHashMap<Task<?>, Boolean>());
+    private final Result<Void> result = new Result<>();
+    // one for each running task, plus one until the group is done
+    private final AtomicInteger remaining = new AtomicInteger(1);
+    private final AtomicBoolean sealed = new AtomicBoolean();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    TaskGroup(TaskPool pool, ContextHandle handle) {
+        this.pool = pool;
+        this.handle = handle;
+        if (handle != null)
+            handle.bind(this);
+    }
+
+    /**
+     * Execute a task as part of this group
+     *
+     * @return The task's own Result
+     */
+    public <T> Result<T> execute(Task<T> task) {
+        return execute(task, task.getPriority());
+    }
+
+    /**
+     * Execute a task as part of this group with a priority other than the one the task declares
+     *
+     * @return The task's own Result
+     */
+    public <T> Result<T> execute(final Task<T> task, int priority) {
+        if (sealed.get())
+            throw new IllegalStateException("TaskGroup is done");
+        if (finished.get()) {
+            Result<T> cancelled = new Result<>();
+            cancelled.onException(new CancellationException("TaskGroup is cancelled"));
+            return cancelled;
+        }
+        remaining.incrementAndGet();
+        tasks.add(task);
+        Result<T> taskResult = pool.execute(handle, task, priority);
+        taskResult.addCallback(new Result.SimpleCallback<T>() {
+            @Override
+            public void onResult(T value, Exception err, Object h) {
+                tasks.remove(task);
+                if (err != null)
+                    fail(err);
+                else
+                    countDown();
+            }
+        });
+        if (finished.get())
+            task.interrupt();
+        return taskResult;
+    }
+
+    /**
+     * No more tasks will be added, the group's Result is delivered once the tasks already
+     * added are complete
+     */
+    public TaskGroup done() {
+        if (sealed.compareAndSet(false, true))
+            countDown();
+        return this;
+    }
+
+    /**
+     * @return The result of the whole group
+     */
+    public Result<Void> getResult() {
+        return result;
+    }
+
+    public boolean isCancelled() {
+        return finished.get() && result.getException() instanceof CancellationException;
+    }
+
+    /**
+     * @return The number of tasks in the group that haven't delivered their result
+     */
+    public int getTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * Interrupt every task in the group and fail the group with a CancellationException
+     */
+    public void cancel() {
+        fail(new CancellationException("TaskGroup cancelled"));
+    }
+
+    @Override
+    public void onDestroy() {
+        cancel();
+    }
+
+    private void countDown() {
+        if (remaining.decrementAndGet() == 0 && finished.compareAndSet(false, true)) {
+            unbind();
+            result.onResult(null);
+        }
+    }
+
+    private void fail(Exception err) {
+        if (!finished.compareAndSet(false, true))
+            return;
+        unbind();
+        for (Task<?> task : tasks) {
+            task.interrupt();
+        }
+        result.onException(err);
+    }
+
+    private void unbind() {
+        if (handle != null)
+            handle.unbind(this);
+    }
+
+}
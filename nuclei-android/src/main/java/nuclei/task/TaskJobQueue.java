@@ -0,0 +1,328 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nuclei.logs.Log;
+import nuclei.logs.Logs;
+
+/**
+ * A local, SQLite backed queue of scheduled tasks, each stored as a TaskCodec blob.
+ * Batched tasks (see TaskScheduler.Builder#setBatched(boolean)) are stored here and a single
+ * platform job runs everything queued, so many small deferred tasks cost one job instead of
+ * one each.
+ * <br />
+ * The job is only scheduled again when the combined constraints of the queued tasks change,
+ * so a steady stream of tasks doesn't keep pushing it back.  Tasks that fail are retried by
+ * a job scheduled with an exponential backoff.
+ * <br />
+ * The queue outlives the process, replay(TaskPool) runs whatever is left, for example when
+ * the application starts.
+ */
+public final class TaskJobQueue extends SQLiteOpenHelper {
+
+    static final Log LOG = Logs.newLog(TaskJobQueue.class);
+
+    static final String DATABASE = "nuclei-jobs.db";
+    static final int VERSION = 2;
+    static final String TABLE = "jobs";
+    static final String BATCH_TABLE = "batch";
+    static final int MAX_ATTEMPTS = 3;
+    static final long RETRY_BACKOFF = 30000;
+
+    static final int BATCH_JOB_ID = 1 << 30;
+    static final String BATCH_JOB_TAG = "nuclei-job-queue";
+
+    private static TaskJobQueue sInstance;
+
+    public static synchronized TaskJobQueue getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new TaskJobQueue(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * @return The queue, or null if it was never created and there isn't a database to open
+     */
+    static synchronized TaskJobQueue getExistingInstance(Context context) {
+        if (sInstance == null && !context.getDatabasePath(DATABASE).exists())
+            return null;
+        return getInstance(context);
+    }
+
+    private TaskJobQueue(Context context) {
+        super(context, DATABASE, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "task_name TEXT NOT NULL, "
+                + "tag TEXT, "
+                + "data BLOB, "
+                + "attempts INTEGER NOT NULL DEFAULT 0, "
+                + "network INTEGER NOT NULL, "
+                + "charging INTEGER NOT NULL, "
+                + "idle INTEGER NOT NULL, "
+                + "persisted INTEGER NOT NULL, "
+                + "force_gcm INTEGER NOT NULL, "
+                + "window_start INTEGER NOT NULL, "
+                + "window_end INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX jobs_tag ON " + TABLE + " (tag)");
+        // the constraints of the batch job that is waiting to run, if any
+        db.execSQL("CREATE TABLE " + BATCH_TABLE + " (_id INTEGER PRIMARY KEY, constraints TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + BATCH_TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Queue the task with the constraints it was scheduled with, windows are stored as
+     * absolute times so they can be combined with the other queued tasks later
+     */
+    void add(TaskScheduler.Builder builder) {
+        Task<?> task = builder.mTask;
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues(11);
+        values.put("task_name", task.getClass().getName());
+        values.put("tag", task.getTaskTag());
+        values.put("data", TaskCodec.encode(task));
+        values.put("network", builder.mNetworkState);
+        values.put("charging", builder.mRequiresCharging ? 1 : 0);
+        values.put("idle", builder.mRequiresDeviceIdle ? 1 : 0);
+        values.put("persisted", builder.mPersisted ? 1 : 0);
+        values.put("force_gcm", builder.mForceGcm ? 1 : 0);
+        values.put("window_start", builder.mWindowStartDelaySecondsSet
+                ? now + builder.mWindowStartDelaySeconds * 1000 : -1);
+        values.put("window_end", builder.mWindowEndDelaySecondsSet
+                ? now + builder.mWindowEndDelaySeconds * 1000 : -1);
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (builder.mUpdateCurrent)
+                db.delete(TABLE, "tag = ?", new String[] {task.getTaskTag()});
+            db.insert(TABLE, null, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    void remove(String tag) {
+        getWritableDatabase().delete(TABLE, "tag = ?", new String[] {tag});
+    }
+
+    void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE, null, null);
+        db.delete(BATCH_TABLE, null, null);
+    }
+
+    public int size() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Schedule the batch job with the union of the queued tasks' constraints, unless a job
+     * with the same constraints is already waiting to run
+     *
+     * @param retry Whether tasks failed, the job is then delayed by a backoff
+     */
+    synchronized void schedule(Context context, boolean retry) {
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor cursor = db.rawQuery("SELECT COUNT(*), MAX(network), MAX(charging), MAX(idle), "
+                + "MAX(persisted), MAX(force_gcm), MAX(window_start), "
+                + "MIN(CASE WHEN window_end < 0 THEN NULL ELSE window_end END), MIN(attempts) "
+                + "FROM " + TABLE, null);
+        int network;
+        boolean charging, idle, persisted, forceGcm;
+        long windowStart, windowEnd;
+        int attempts;
+        try {
+            if (!cursor.moveToFirst() || cursor.getInt(0) == 0)
+                return;
+            network = cursor.getInt(1);
+            charging = cursor.getInt(2) != 0;
+            idle = cursor.getInt(3) != 0;
+            persisted = cursor.getInt(4) != 0;
+            forceGcm = cursor.getInt(5) != 0;
+            windowStart = cursor.getLong(6);
+            windowEnd = cursor.isNull(7) ? -1 : cursor.getLong(7);
+            attempts = cursor.getInt(8);
+        } finally {
+            cursor.close();
+        }
+        long now = System.currentTimeMillis();
+        if (retry && attempts > 0)
+            windowStart = Math.max(windowStart, now + (RETRY_BACKOFF << Math.min(attempts - 1, 10)));
+        String constraints = network + ":" + charging + ":" + idle + ":" + persisted + ":"
+                + forceGcm + ":" + windowStart + ":" + windowEnd;
+        if (constraints.equals(getScheduledConstraints(db)))
+            return;
+
+        TaskScheduler.Builder builder = TaskScheduler.newBuilder(new BatchTask(), TaskScheduler.TASK_ONE_OFF)
+                .setRequiredNetwork(network)
+                .setRequiresCharging(charging)
+                .setRequiresDeviceIdle(idle)
+                .setPersisted(persisted)
+                .setForceGcm(forceGcm)
+                .setUpdateCurrent(true);
+        long startSeconds = windowStart > now ? (windowStart - now) / 1000 : 0;
+        if (windowStart > now) {
+            builder.mWindowStartDelaySeconds = startSeconds;
+            builder.mWindowStartDelaySecondsSet = true;
+        }
+        if (windowEnd >= 0) {
+            builder.mWindowEndDelaySeconds = Math.max(startSeconds, (windowEnd - now) / 1000);
+            builder.mWindowEndDelaySecondsSet = true;
+        }
+        builder.build().schedule(context);
+
+        ContentValues values = new ContentValues(2);
+        values.put("_id", 1);
+        values.put("constraints", constraints);
+        db.replace(BATCH_TABLE, null, values);
+    }
+
+    private static String getScheduledConstraints(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT constraints FROM " + BATCH_TABLE + " WHERE _id = 1", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Run every queued task, in the order they were queued, on the calling thread.
+     * Failed tasks are kept, up to MAX_ATTEMPTS times, and retried by a job scheduled with
+     * a backoff.
+     *
+     * @return The number of tasks that ran successfully
+     */
+    synchronized int drain(Context context) {
+        SQLiteDatabase db = getWritableDatabase();
+        // the job that was waiting is the one running now
+        db.delete(BATCH_TABLE, null, null);
+
+        List<Job> jobs = new ArrayList<>();
+        Cursor cursor = db.query(TABLE, new String[] {"_id", "task_name", "data", "attempts"},
+                null, null, null, null, "_id");
+        try {
+            while (cursor.moveToNext())
+                jobs.add(new Job(cursor.getString(0), cursor.getString(1), cursor.getBlob(2), cursor.getInt(3)));
+        } finally {
+            cursor.close();
+        }
+
+        int succeeded = 0;
+        for (int i = 0, len = jobs.size(); i < len; i++) {
+            Job job = jobs.get(i);
+            int attempts = job.attempts + 1;
+            Exception err;
+            try {
+                err = TaskCodec.decode(job.data).runDetached();
+            } catch (Exception e) {
+                err = e;
+            }
+            if (err == null) {
+                succeeded++;
+                db.delete(TABLE, "_id = ?", new String[] {job.id});
+            } else {
+                LOG.e("Error running queued task " + job.taskName + ", attempt " + attempts, err);
+                if (attempts >= MAX_ATTEMPTS) {
+                    db.delete(TABLE, "_id = ?", new String[] {job.id});
+                } else {
+                    ContentValues values = new ContentValues(1);
+                    values.put("attempts", attempts);
+                    db.update(TABLE, values, "_id = ?", new String[] {job.id});
+                }
+            }
+        }
+        schedule(context, true);
+        return succeeded;
+    }
+
+    /**
+     * Run whatever is left in the queue on the pool, for example tasks queued before the
+     * process died whose platform job was lost
+     */
+    public Result<Integer> replay(TaskPool pool) {
+        return pool.execute(new BatchTask());
+    }
+
+    static final class Job {
+
+        final String id;
+        final String taskName;
+        final byte[] data;
+        final int attempts;
+
+        Job(String id, String taskName, byte[] data, int attempts) {
+            this.id = id;
+            this.taskName = taskName;
+            this.data = data;
+            this.attempts = attempts;
+        }
+
+    }
+
+    /**
+     * The task run by the platform job to drain the queue
+     */
+    public static final class BatchTask extends Task<Integer> {
+
+        @Override
+        public int getTaskId() {
+            return BATCH_JOB_ID;
+        }
+
+        @Override
+        public String getTaskTag() {
+            return BATCH_JOB_TAG;
+        }
+
+        @Override
+        public String getId() {
+            return BATCH_JOB_TAG;
+        }
+
+        @Override
+        public void run(Context context) {
+            onComplete(getInstance(context).drain(context));
+        }
+
+    }
+
+}
@@ -20,6 +20,7 @@ import android.app.job.JobParameters;
 import android.app.job.JobService;
 import android.os.BaseBundle;
 import android.support.v4.util.ArrayMap;
+import android.util.Base64;
 
 import nuclei.task.http.Http;
 import nuclei.task.http.HttpTask;
@@ -56,13 +57,20 @@ public class TaskJobService extends JobService {
             if (sTaskPool == null)
                 throw new NullPointerException("TaskJobService TaskPool not set!");
             BaseBundle bundle = params.getExtras();
-            String taskName = bundle.getString(TaskScheduler.TASK_NAME);
-            Task task = (Task) Class.forName(taskName).newInstance();
-            ArrayMap<String, Object> map = new ArrayMap<>(bundle.size());
-            for (String key : bundle.keySet()) {
-                map.put(key, bundle.get(key));
+            Task task;
+            String data = bundle.getString(TaskScheduler.TASK_DATA);
+            if (data != null) {
+                task = TaskCodec.decode(Base64.decode(data, Base64.NO_WRAP));
+            } else {
+                // scheduled before tasks were encoded
+                String taskName = bundle.getString(TaskScheduler.TASK_NAME);
+                task = (Task) Class.forName(taskName).newInstance();
+                ArrayMap<String, Object> map = new ArrayMap<>(bundle.size());
+                for (String key : bundle.keySet()) {
+                    map.put(key, bundle.get(key));
+                }
+                task.deserialize(map);
             }
-            task.deserialize(map);
             if (task instanceof HttpTask)
                 Http.execute((HttpTask)task).addCallback(new JobCallback(params));
             else
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The running task and pending tasks for a single Task ID.
+ *
+ * The state counts the running task plus every pending task.  A lane is created already owned
+ * (state of 1) and is retired by moving the state to 0, after which it can't be joined and
+ * has to be replaced in the registry.
+ *
+ * A pending task is counted before it's added, so the owner can briefly find the count ahead
+ * of the queue.  It spins a little and then parks until the producer has added it.
+ */
+final class TaskLane {
+
+    private final AtomicInteger state = new AtomicInteger(1);
+    private final ConcurrentLinkedQueue<TaskPool.TaskRunnable> pending = new ConcurrentLinkedQueue<>();
+    private volatile Thread waiter;
+
+    static final int SPINS = 64;
+
+    volatile Task<?> task;
+    volatile Result<?> result;
+
+    TaskLane(Task<?> task) {
+        setTask(task);
+    }
+
+    void setTask(Task<?> task) {
+        this.task = task;
+        this.result = task.getResult();
+    }
+
+    boolean isRetired() {
+        return state.get() <= 0;
+    }
+
+    /**
+     * Queue the runnable behind the running task
+     *
+     * @return False if the lane has been retired and the runnable wasn't queued
+     */
+    boolean enqueue(TaskPool.TaskRunnable runnable) {
+        for (;;) {
+            int s = state.get();
+            if (s <= 0)
+                return false;
+            if (state.compareAndSet(s, s + 1)) {
+                pending.add(runnable);
+                Thread w = waiter;
+                if (w != null)
+                    LockSupport.unpark(w);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Called when the running task is finished
+     *
+     * @return The next runnable that now owns this lane, or null if the lane was retired
+     */
+    TaskPool.TaskRunnable next() {
+        for (;;) {
+            int s = state.get();
+            if (s == 1) {
+                if (state.compareAndSet(1, 0))
+                    return null;
+            } else if (state.compareAndSet(s, s - 1)) {
+                return poll();
+            }
+        }
+    }
+
+    /**
+     * Take a runnable that has been counted, waiting for its producer to add it if needed
+     */
+    private TaskPool.TaskRunnable poll() {
+        TaskPool.TaskRunnable next;
+        for (int i = 0; i < SPINS; i++) {
+            if ((next = pending.poll()) != null)
+                return next;
+        }
+        boolean interrupted = false;
+        waiter = Thread.currentThread();
+        try {
+            // set before polling again, so a producer adding it after this poll unparks us
+            while ((next = pending.poll()) == null) {
+                LockSupport.park(this);
+                // an interrupted thread doesn't park, keep it for the next task instead
+                interrupted |= Thread.interrupted();
+            }
+        } finally {
+            waiter = null;
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        return next;
+    }
+
+    int getPendingCount() {
+        return Math.max(state.get() - 1, 0);
+    }
+
+}
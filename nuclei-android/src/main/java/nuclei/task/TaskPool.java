@@ -18,25 +18,34 @@ package nuclei.task;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
-import android.support.v4.util.ArrayMap;
 import android.support.v4.util.Pools;
 
-import java.util.ArrayDeque;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import nuclei.logs.Log;
 import nuclei.logs.Logs;
@@ -46,6 +55,40 @@ import nuclei.logs.Logs;
  *
  * When two tasks with the same ID are attempted to run simultaneously, the first
  * executing task goes first, and once it's complete, the other task is allowed to run.
+ * Tasks with the same ID run in the order they were dispatched, each one handed straight
+ * to a worker by the task before it.
+ *
+ * Queued tasks are dispatched by priority (see Task#getPriority()).  To keep low priority work
+ * from starving, every priority level is worth a fixed amount of waiting time, so a task that has
+ * waited long enough is dispatched ahead of newer, higher priority tasks.
+ *
+ * Tasks that coalesce (see Task#shouldCoalesce() and Builder#withCoalescing(boolean)) are not
+ * queued behind a running task with the same ID, they share its result instead.
+ *
+ * A pool built with Builder#withWorkStealing(boolean) runs its tasks on a ForkJoinPool (API 21+),
+ * where tasks can fork child tasks (see Task#fork(Task)) and join on them without blocking a
+ * worker.  Priorities are not applied to a work stealing pool.
+ *
+ * When the queue is full, the pool's rejection policy decides what happens to the task
+ * (see Builder#withRejectionPolicy(int)) and TaskPoolMonitor#onRejected is called.
+ *
+ * Tasks are submitted straight to the executor from any thread.  Results are delivered on the
+ * pool's looper unless a result executor is supplied, see Builder#withResultExecutor(Executor).
+ * Deliveries on the looper can be batched once per frame, see Builder#withFrameBatching(boolean).
+ *
+ * Latency histograms and saturation counters are kept for every pool, see getMetrics().
+ *
+ * Tasks executed with executeWhenIdle(ContextHandle, Task) wait until the pool's looper is idle
+ * and nothing else is queued, so background chores stay out of the way of frame work.
+ *
+ * A pool built with Builder#withMemoization(int) keeps recent successful results in memory
+ * and completes repeated tasks from them, see Task#getMemoizeTtl().
+ *
+ * A pool built with Builder#withAdaptiveSizing(int, int) sizes itself from how much of its
+ * tasks' time is spent blocked, and reports changes to TaskPoolMonitor#onResize.
+ *
+ * Interrupting a task removes it from the queue before it starts, and tasks with a timeout
+ * (see Task#getTimeout()) are interrupted by the pool once their deadline passes.
  */
 public final class TaskPool implements Handler.Callback {
 
@@ -53,12 +96,53 @@ public final class TaskPool implements Handler.Callback {
     public static final String HTTP_POOL = "NeuronHttp";
 
     static final int MESSAGE_RESULT = 1;
-    static final int MESSAGE_QUEUE = 2;
     static final int MESSAGE_QUEUE_FAILED = 3;
 
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({REJECT_FAIL, REJECT_BLOCK, REJECT_CALLER_RUNS, REJECT_DISCARD_LOWEST, REJECT_OVERFLOW})
+    public @interface RejectionPolicy {
+    }
+
+    /**
+     * Fail the rejected task with a RejectedExecutionException
+     */
+    public static final int REJECT_FAIL = 0;
+    /**
+     * Block the submitting thread until there is room in the queue.  The pool's looper is
+     * never blocked, tasks it submits spill to the overflow queue as with REJECT_OVERFLOW.
+     */
+    public static final int REJECT_BLOCK = 1;
+    /**
+     * Run the rejected task on the submitting thread, which may be the pool's looper
+     */
+    public static final int REJECT_CALLER_RUNS = 2;
+    /**
+     * Fail the lowest priority task, queued or rejected, to make room
+     */
+    public static final int REJECT_DISCARD_LOWEST = 3;
+    /**
+     * Spill the rejected task to an unbounded overflow queue that refills the queue as it drains
+     */
+    public static final int REJECT_OVERFLOW = 4;
+
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
     private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
     static final int DEFAULT_POOL_SIZE = CPU_COUNT * 2 + 1;
+    static final int DEFAULT_QUEUE_CAPACITY = 128;
+    static final long DEFAULT_PRIORITY_AGING = 100;
+
+    static final Comparator<Runnable> PRIORITY_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            TaskRunnable l = (TaskRunnable) lhs;
+            TaskRunnable r = (TaskRunnable) rhs;
+            if (l.order != r.order)
+                return l.order < r.order ? -1 : 1;
+            if (l.sequence != r.sequence)
+                return l.sequence < r.sequence ? -1 : 1;
+            return 0;
+        }
+    };
 
     static final Log LOG = Logs.newLog(TaskPool.class);
 
@@ -66,46 +150,176 @@ public final class TaskPool implements Handler.Callback {
 
     static TaskPoolListener LISTENER;
 
+    /**
+     * Delivers results inline on the worker thread that ran the task
+     */
+    public static final Executor INLINE_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Chains deeper than this are delivered through the looper to bound the worker's stack
+     */
+    static final int MAX_FUSED_DEPTH = 32;
+
+    static final ThreadLocal<Fusion> FUSION = new ThreadLocal<>();
+
+    private static ScheduledExecutorService SCHEDULER;
+
     public static void setListener(TaskPoolListener listener) {
         LISTENER = listener;
     }
 
-    private final Pools.SimplePool<TaskRunnable> taskRunnablePool;
-    final Pools.SimplePool<Queue<TaskRunnable>> taskQueues;
+    /**
+     * @return Where callbacks that need the looper go while a result is delivered on a
+     *         worker, null if the current thread isn't delivering one
+     */
+    static Executor deferredExecutor() {
+        Fusion fusion = FUSION.get();
+        return fusion != null && fusion.pool != null ? fusion : null;
+    }
+
+    static synchronized ScheduledExecutorService getScheduler() {
+        if (SCHEDULER == null) {
+            SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "TaskPool Scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return SCHEDULER;
+    }
+
+    private final Pools.SynchronizedPool<TaskRunnable> taskRunnablePool;
     final Handler handler;
-    private final ThreadPoolExecutor poolExecutor;
+    private final ExecutorService poolExecutor;
 
     private final String name;
     final List<TaskInterceptor> interceptors;
+    private final long priorityAging;
+    private final boolean coalescing;
+    @RejectionPolicy
+    private final int rejectionPolicy;
+    private final ConcurrentLinkedQueue<TaskRunnable> overflow = new ConcurrentLinkedQueue<>();
+    private final Executor resultExecutor;
+    private final FrameBatcher frameBatcher;
+    private final TaskPoolMetrics metrics;
+    private final long metricsInterval;
+    private final PoolSizer sizer;
+    private final MemoCache memo;
+    private final IdleLane idleLane;
+    private final StallWatchdog watchdog;
+    final int parallelism;
+    private final AtomicLong sequence = new AtomicLong();
+    final Executor looperExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            handler.post(command);
+        }
+    };
 
     private TaskListener listener;
 
-    TaskPool(Looper mainLooper, final String name, int maxThreads, List<TaskInterceptor> interceptors) {
+    TaskPool(Builder builder) {
+        final String name = builder.name;
         this.name = name;
         TASK_POOLS.put(name, this);
-        this.interceptors = interceptors;
-        handler = new Handler(mainLooper, this);
-        BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>(128);
-        taskRunnablePool = new Pools.SimplePool<>(maxThreads);
-        taskQueues = new Pools.SimplePool<>(10);
-        maxThreads = Math.max(CORE_POOL_SIZE, maxThreads);
-        poolExecutor = new ThreadPoolExecutor(CORE_POOL_SIZE, maxThreads, 1,
-                TimeUnit.SECONDS, workQueue, new ThreadFactory() {
-            private final AtomicInteger mCount = new AtomicInteger(1);
-            @Override
-            public Thread newThread(@NonNull Runnable r) {
-                return new Thread(r, name + " #" + mCount.incrementAndGet());
+        this.interceptors = builder.interceptors;
+        priorityAging = builder.priorityAging;
+        coalescing = builder.coalescing;
+        rejectionPolicy = builder.rejectionPolicy;
+        resultExecutor = builder.resultExecutor;
+        handler = new Handler(builder.mainLooper, this);
+        frameBatcher = builder.frameBatching ? new FrameBatcher(this, handler) : null;
+        idleLane = new IdleLane(this, handler, builder.idleBudget);
+        metrics = new TaskPoolMetrics(this);
+        metricsInterval = builder.metricsInterval;
+        memo = builder.memoizedEntries > 0 ? new MemoCache(builder.memoizedEntries) : null;
+        watchdog = builder.stallSampleRate > 0
+                ? new StallWatchdog(this, builder.stallBudget, builder.stallSampleRate) : null;
+        int maxThreads = builder.maxThreads;
+        taskRunnablePool = new Pools.SynchronizedPool<>(maxThreads);
+        if (builder.workStealing && ForkJoinSupport.isSupported()) {
+            poolExecutor = ForkJoinSupport.newPool(name, Math.max(1, maxThreads));
+        } else {
+            BlockingQueue<Runnable> workQueue = new TaskQueue(builder.queueCapacity, PRIORITY_ORDER);
+            int coreThreads = CORE_POOL_SIZE;
+            if (builder.adaptiveMaxThreads > 0) {
+                coreThreads = builder.adaptiveMinThreads;
+                maxThreads = builder.adaptiveMinThreads;
+            } else {
+                maxThreads = Math.max(CORE_POOL_SIZE, maxThreads);
             }
-        });
+            poolExecutor = new ThreadPoolExecutor(coreThreads, maxThreads, 1,
+                    TimeUnit.SECONDS, workQueue, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, name + " #" + mCount.incrementAndGet());
+                }
+            }, new RejectionHandler());
+        }
+        if (builder.adaptiveMaxThreads > 0 && poolExecutor instanceof ThreadPoolExecutor) {
+            sizer = new PoolSizer(this, (ThreadPoolExecutor) poolExecutor,
+                    builder.adaptiveMinThreads, builder.adaptiveMaxThreads);
+            sizer.start(builder.adaptiveInterval);
+        } else {
+            sizer = null;
+        }
+        parallelism = Math.max(1, builder.adaptiveMaxThreads > 0 ? builder.adaptiveMaxThreads : maxThreads);
 
         if (LISTENER != null)
             LISTENER.onCreated(this);
+        if (metricsInterval > 0)
+            handler.postDelayed(metricsReporter, metricsInterval);
+    }
+
+    private final Runnable metricsReporter = new Runnable() {
+        @Override
+        public void run() {
+            if (isShutdown())
+                return;
+            reportMetrics();
+            handler.postDelayed(this, metricsInterval);
+        }
+    };
+
+    /**
+     * @return The live metrics of this pool
+     */
+    public TaskPoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Report this pool's metrics to the TaskPoolMonitor
+     */
+    public void reportMetrics() {
+        TaskPoolListener listener = LISTENER;
+        if (listener instanceof TaskPoolMonitor)
+            ((TaskPoolMonitor) listener).onMetrics(this, metrics);
+    }
+
+    public static void reportAllMetrics() {
+        for (TaskPool pool : TASK_POOLS.values()) {
+            pool.reportMetrics();
+        }
     }
 
     public String getName() {
         return name;
     }
 
+    /**
+     * Set a listener for task events.  The listener is called from worker threads without
+     * any locks held, so it has to be thread safe.
+     */
     public void setListener(TaskListener listener) {
         this.listener = listener;
     }
@@ -133,25 +347,27 @@ public final class TaskPool implements Handler.Callback {
     }
 
     public Set<String> getRunningIds() {
-        synchronized (runningIds) {
-            return new HashSet<>(runningIds.keySet());
-        }
+        return new HashSet<>(lanes.keySet());
     }
 
     public int getRunningCount() {
-        synchronized (runningIds) {
-            return runningIds.size();
-        }
+        return lanes.size();
+    }
+
+    /**
+     * @return The number of tasks waiting in the pool's queue, including any overflow
+     */
+    public int getQueuedCount() {
+        int count = overflow.size();
+        if (poolExecutor instanceof ThreadPoolExecutor)
+            count += ((ThreadPoolExecutor) poolExecutor).getQueue().size();
+        return count;
     }
 
     public int getPendingCount() {
         int count = 0;
-        synchronized (runningIds) {
-            for (int i = 0; i < pendingTasks.size(); i++) {
-                Queue<TaskRunnable> pending = pendingTasks.valueAt(i);
-                if (pending != null)
-                    count += pending.size();
-            }
+        for (TaskLane lane : lanes.values()) {
+            count += lane.getPendingCount();
         }
         return count;
     }
@@ -159,41 +375,126 @@ public final class TaskPool implements Handler.Callback {
     @Override
     public boolean handleMessage(Message msg) {
         switch (msg.what) {
-            case MESSAGE_QUEUE: {
-                TaskRunnable runnable;
-                if (msg.obj instanceof TaskRunnable) {
-                    runnable = (TaskRunnable) msg.obj;
-                } else {
-                    runnable = toRunnable((Task<?>) msg.obj);
-                }
-                try {
-                    poolExecutor.execute(runnable);
-                } catch (RejectedExecutionException err) {
-                    LOG.e("Error dispatching", err);
-                    runnable.task.onException(err);
-                    runnable.task.deliverResult(runnable);
-                    taskRunnablePool.release(runnable);
-                }
-                break;
-            }
-            case MESSAGE_QUEUE_FAILED: {
-                TaskRunnable runnable = (TaskRunnable) msg.obj;
-                if (runnable.task != null)
-                    runnable.task.deliverResult(runnable);
-                taskRunnablePool.release(runnable);
-                break;
-            }
+            case MESSAGE_QUEUE_FAILED:
             case MESSAGE_RESULT: {
-                TaskRunnable runnable = (TaskRunnable) msg.obj;
-                if (runnable.task != null)
-                    runnable.task.deliverResult(runnable);
-                taskRunnablePool.release(runnable);
+                onDeliver((TaskRunnable) msg.obj);
                 break;
             }
         }
         return true;
     }
 
+    void onDeliver(TaskRunnable runnable) {
+        clearDeadline(runnable);
+        Task task = runnable.task;
+        if (task != null) {
+            StallWatchdog.Watch watch = watchdog != null ? watchdog.begin(task) : null;
+            try {
+                task.deliverResult(runnable);
+            } finally {
+                if (watch != null)
+                    watchdog.end(watch);
+            }
+        }
+        if (runnable.finished != 0)
+            metrics.onDelivered(runnable.taskClass, System.nanoTime() - runnable.finished);
+        runnable.taskClass = null;
+        taskRunnablePool.release(runnable);
+    }
+
+    /**
+     * Deliver the result on the worker that ran the task, so continuations of this pool run
+     * right away on the same thread.  Other callbacks of the result are posted to the looper.
+     */
+    void deliverFused(TaskRunnable runnable) {
+        Fusion fusion = FUSION.get();
+        if (fusion == null) {
+            fusion = new Fusion();
+            FUSION.set(fusion);
+        }
+        TaskPool pool = fusion.pool;
+        Task<?> task = fusion.task;
+        fusion.pool = this;
+        fusion.task = runnable.task;
+        fusion.depth++;
+        metrics.fused.incrementAndGet();
+        try {
+            onDeliver(runnable);
+        } finally {
+            fusion.depth--;
+            fusion.pool = pool;
+            fusion.task = task;
+        }
+    }
+
+    /**
+     * @return True if the runnable's result can be delivered on the current worker
+     */
+    private boolean canFuse(TaskRunnable runnable) {
+        if (runnable.resultExecutor != null || runnable.task == null || frameBatcher != null
+                || runnable.task.isStaleDelivered())
+            return false;
+        Fusion fusion = FUSION.get();
+        if (fusion != null && fusion.depth >= MAX_FUSED_DEPTH)
+            return false;
+        Result<?> result = runnable.task.getResult();
+        return result != null && result.hasInlineCallback();
+    }
+
+    /**
+     * Deliver a stale result while the task keeps running, the same way its final result
+     * will be delivered.  The final result isn't fused, so both go through the runnable's
+     * result executor or the pool's looper.
+     *
+     * @see Task#onStaleResult(Object)
+     */
+    <T> void deliverStale(TaskRunnable runnable, final Result<T> result, final T data) {
+        Executor executor = runnable.resultExecutor;
+        if (executor == null)
+            executor = looperExecutor;
+        executor.execute(new WatchedDelivery(this, runnable.task, new Runnable() {
+            @Override
+            public void run() {
+                result.onStaleResult(data);
+            }
+        }));
+    }
+
+    /**
+     * Start timing a delivery that doesn't go through onDeliver
+     *
+     * @return The watch to pass to endWatch(StallWatchdog.Watch), or null
+     */
+    StallWatchdog.Watch beginWatch(Class<?> taskClass, String logKey) {
+        return watchdog != null ? watchdog.begin(taskClass, logKey) : null;
+    }
+
+    void endWatch(StallWatchdog.Watch watch) {
+        if (watch != null)
+            watchdog.end(watch);
+    }
+
+    /**
+     * Deliver the result of the runnable on its result executor, or the pool's looper if it
+     * doesn't have one
+     */
+    void deliver(final TaskRunnable runnable, int what) {
+        Executor executor = runnable.resultExecutor;
+        if (executor == null) {
+            if (frameBatcher != null)
+                frameBatcher.add(runnable);
+            else
+                handler.obtainMessage(what, runnable).sendToTarget();
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onDeliver(runnable);
+                }
+            });
+        }
+    }
+
     private final TaskRunnable EMPTY = new TaskRunnable();
 
     /**
@@ -227,33 +528,217 @@ public final class TaskPool implements Handler.Callback {
         return result;
     }
 
+    /**
+     * Fork a child task.  On a work stealing pool the child is pushed to the current worker
+     * where other workers can steal it, otherwise it is run by the thread that joins on it.
+     *
+     * The child runs without validation that it is unique and its Result is delivered on
+     * the thread that ran it.
+     *
+     * @see #join(Result)
+     */
+    <T> Result<T> fork(ContextHandle handle, Task<T> task) {
+        Result<T> result = task.attach(this, handle);
+        ForkedRunnable forked = new ForkedRunnable(task);
+        if (ForkJoinSupport.isWorkStealing(poolExecutor))
+            result.mFork = ForkJoinSupport.fork(poolExecutor, forked);
+        else
+            result.mFork = forked;
+        return result;
+    }
+
+    /**
+     * Wait for a forked task to finish and return its result.  When called from a work stealing
+     * worker, the worker runs other tasks while it waits.
+     *
+     * @see #fork(ContextHandle, Task)
+     */
+    static <T> T join(Result<T> result) {
+        Object fork = result.mFork;
+        if (fork == null)
+            throw new IllegalArgumentException("Result is not from a forked task");
+        if (ForkJoinSupport.isForkJoinTask(fork))
+            ForkJoinSupport.join(fork);
+        else
+            ((ForkedRunnable) fork).run();
+        return result.get();
+    }
+
     public <T> Result<T> execute(Task<T> task) {
         return execute(null, task);
     }
 
     public <T> Result<T> execute(ContextHandle handle, Task<T> task) {
+        return execute(handle, task, task.getPriority(), resultExecutor);
+    }
+
+    /**
+     * Execute the task and deliver its result on the supplied executor instead of the pool's
+     * looper.  Use INLINE_EXECUTOR to deliver on the worker that ran the task.
+     *
+     * @param handle The ContextHandle to attach to the task
+     * @param task The task
+     * @param resultExecutor Where the Result is delivered, null for the pool's looper
+     */
+    public <T> Result<T> execute(ContextHandle handle, Task<T> task, Executor resultExecutor) {
+        return execute(handle, task, task.getPriority(), resultExecutor);
+    }
+
+    /**
+     * Execute the task with a priority other than the one the task declares
+     *
+     * @param handle The ContextHandle to attach to the task
+     * @param task The task
+     * @param priority The dispatch priority
+     * @see Task#getPriority()
+     */
+    public <T> Result<T> execute(ContextHandle handle, Task<T> task, int priority) {
+        return execute(handle, task, priority, resultExecutor);
+    }
+
+    /**
+     * Execute the task from any thread
+     *
+     * @param handle The ContextHandle to attach to the task
+     * @param task The task
+     * @param priority The dispatch priority
+     * @param resultExecutor Where the Result is delivered, null for the pool's looper
+     */
+    public <T> Result<T> execute(ContextHandle handle, Task<T> task, int priority, Executor resultExecutor) {
+        Result<T> result = task.attach(this, handle);
+        dispatch(task, result, priority, resultExecutor, false);
+        return result;
+    }
+
+    /**
+     * Execute a continuation and forward its result.  When called while this pool delivers
+     * a result on one of its workers, the task runs right away on that worker.
+     *
+     * @see Result#continueWith(ContextHandle, ChainedTask, ChainedTask, TaskPool)
+     */
+    <T> Result<T> executeFused(ContextHandle handle, Task<T> task, Result<T> forwardTo) {
         Result<T> result = task.attach(this, handle);
-        if (handler.getLooper() != Looper.myLooper()) {
-            handler.obtainMessage(MESSAGE_QUEUE, task).sendToTarget();
-            return result;
+        result.forward(forwardTo);
+        Fusion fusion = FUSION.get();
+        boolean inline = resultExecutor == null && fusion != null && fusion.pool == this;
+        dispatch(task, result, task.getPriority(), resultExecutor, inline);
+        return result;
+    }
+
+    private <T> void dispatch(Task<T> task, Result<T> result, int priority, Executor resultExecutor, boolean inline) {
+        TaskRunnable runnable = toRunnable(task, priority);
+        runnable.resultExecutor = resultExecutor;
+        if (memo != null && task.getMemoizeTtl() > 0) {
+            MemoCache.Entry entry = memo.get(task);
+            if (entry != null) {
+                if (LOG.isLoggable(Log.INFO))
+                    LOG.i("Memoized (" + task.getLogKey() + ")");
+                metrics.memoized.incrementAndGet();
+                task.onMemoized(entry.value);
+                if (inline && canFuse(runnable))
+                    deliverFused(runnable);
+                else
+                    deliver(runnable, MESSAGE_RESULT);
+                return;
+            }
+        }
+        long timeout = task.getTimeout();
+        if (timeout > 0)
+            runnable.deadline = getScheduler().schedule(new Deadline(task, result), timeout, TimeUnit.MILLISECONDS);
+        if (inline) {
+            // only the delivery is fused, results the task body completes are delivered as usual
+            Fusion fusion = FUSION.get();
+            TaskPool pool = fusion.pool;
+            fusion.pool = null;
+            try {
+                runnable.run();
+            } finally {
+                fusion.pool = pool;
+            }
+            return;
         }
-        TaskRunnable runnable = toRunnable(task);
         try {
             poolExecutor.execute(runnable);
         } catch (RejectedExecutionException err) {
             LOG.e("Error dispatching", err);
-            task.onException(err);
-            handler.obtainMessage(MESSAGE_QUEUE_FAILED, runnable).sendToTarget();
+            fail(runnable, err);
         }
-        return result;
     }
 
-    private TaskRunnable toRunnable(Task<?> task) {
+    /**
+     * Map every input on the pool in parallel, without blocking a thread to collect them.
+     * At most one input per pool thread is in flight, the next is executed as each finishes,
+     * so large lists don't fill the pool's queue.
+     *
+     * @param handle The ContextHandle to attach to the map tasks
+     * @param inputs The inputs
+     * @param mapper Maps an input on a worker thread
+     * @return The mapped values, in the same order as the inputs
+     * @see Result#allOf(List)
+     */
+    public <I, O> Result<List<O>> parallelMap(ContextHandle handle, List<? extends I> inputs, TaskMapper<I, O> mapper) {
+        return new ParallelMap<>(this, handle, inputs, mapper).start();
+    }
+
+    /**
+     * Execute a low priority task once the pool's looper is idle and no other tasks are
+     * waiting in the queue.  Use for cache warmup, prefetching and cleanup that shouldn't
+     * compete with the first frames or scrolling.
+     *
+     * @param handle The ContextHandle to attach to the task
+     * @param task The task
+     * @see Builder#withIdleBudget(int)
+     */
+    public <T> Result<T> executeWhenIdle(ContextHandle handle, Task<T> task) {
+        return idleLane.add(handle, task);
+    }
+
+    /**
+     * @return The number of tasks waiting for the looper to be idle
+     */
+    public int getIdleCount() {
+        return idleLane.size();
+    }
+
+    /**
+     * Forget the memoized result of the task's class and ID
+     */
+    public void invalidateMemoized(Task<?> task) {
+        if (memo != null)
+            memo.remove(task);
+    }
+
+    /**
+     * Forget all memoized results
+     */
+    public void clearMemoized() {
+        if (memo != null)
+            memo.clear();
+    }
+
+    /**
+     * Create a group of tasks that succeed, fail or are cancelled together
+     *
+     * @param handle The ContextHandle to attach to the group's tasks, releasing it cancels the group
+     */
+    public TaskGroup newGroup(ContextHandle handle) {
+        return new TaskGroup(this, handle);
+    }
+
+    private TaskRunnable toRunnable(Task<?> task, int priority) {
         TaskRunnable runnable = taskRunnablePool.acquire();
         if (runnable == null)
             runnable = new TaskRunnable();
         runnable.task = task;
+        task.runnable = runnable;
+        runnable.lane = null;
+        runnable.resultExecutor = null;
         runnable.start = System.currentTimeMillis();
+        runnable.queued = System.nanoTime();
+        runnable.finished = 0;
+        runnable.priority = priority;
+        runnable.order = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) - priority * priorityAging;
+        runnable.sequence = sequence.incrementAndGet();
         return runnable;
     }
 
@@ -262,6 +747,8 @@ public final class TaskPool implements Handler.Callback {
     }
 
     public void shutdown() {
+        if (sizer != null)
+            sizer.stop();
         poolExecutor.shutdown();
         TASK_POOLS.remove(name);
         if (LISTENER != null)
@@ -269,6 +756,8 @@ public final class TaskPool implements Handler.Callback {
     }
 
     public void shutdownNow() {
+        if (sizer != null)
+            sizer.stop();
         poolExecutor.shutdownNow();
         TASK_POOLS.remove(name);
         if (LISTENER != null)
@@ -281,10 +770,26 @@ public final class TaskPool implements Handler.Callback {
 
     public static final class Builder {
 
-        private final String name;
-        private int maxThreads = DEFAULT_POOL_SIZE;
-        private Looper mainLooper = Looper.getMainLooper();
-        private List<TaskInterceptor> interceptors;
+        final String name;
+        int maxThreads = DEFAULT_POOL_SIZE;
+        Looper mainLooper = Looper.getMainLooper();
+        List<TaskInterceptor> interceptors;
+        long priorityAging = DEFAULT_PRIORITY_AGING;
+        boolean coalescing;
+        boolean workStealing;
+        int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        @RejectionPolicy
+        int rejectionPolicy = REJECT_FAIL;
+        Executor resultExecutor;
+        boolean frameBatching;
+        long metricsInterval;
+        int adaptiveMinThreads;
+        int adaptiveMaxThreads;
+        long adaptiveInterval = PoolSizer.DEFAULT_INTERVAL;
+        int memoizedEntries;
+        int idleBudget = IdleLane.DEFAULT_BUDGET;
+        long stallBudget;
+        float stallSampleRate;
 
         Builder(String name) {
             this.name = name;
@@ -301,7 +806,7 @@ public final class TaskPool implements Handler.Callback {
         }
 
         /**
-         * Specify which looper dispatching of tasks should be handled on
+         * Specify which looper results should be delivered on
          *
          * @param mainLooper
          */
@@ -310,6 +815,181 @@ public final class TaskPool implements Handler.Callback {
             return this;
         }
 
+        /**
+         * Specify how many milliseconds of waiting a single priority level is worth.
+         * A lower priority task will be dispatched ahead of a higher priority task once it
+         * has been waiting (priority difference * millis) longer.
+         *
+         * @param millis The aging interval per priority level
+         */
+        public Builder withPriorityAging(long millis) {
+            if (millis < 0)
+                throw new IllegalArgumentException("Invalid aging: " + millis);
+            priorityAging = millis;
+            return this;
+        }
+
+        /**
+         * Coalesce all tasks run by this pool.  A task submitted while a task with the same ID
+         * is running receives the running task's result instead of running again.
+         *
+         * @param coalescing True to coalesce tasks with the same ID
+         * @see Task#shouldCoalesce()
+         */
+        public Builder withCoalescing(boolean coalescing) {
+            this.coalescing = coalescing;
+            return this;
+        }
+
+        /**
+         * Run tasks on a work stealing ForkJoinPool with withThreads() parallelism, so that
+         * tasks can fork and join child tasks.  Only available on API 21+, prior to that the
+         * default pool is used and forked tasks run when joined.
+         *
+         * @param workStealing True to use a work stealing pool
+         * @see Task#fork(Task)
+         */
+        public Builder withWorkStealing(boolean workStealing) {
+            this.workStealing = workStealing;
+            return this;
+        }
+
+        /**
+         * Specify how many tasks can wait for a thread before the rejection policy is applied
+         *
+         * @param capacity The queue capacity, 128 by default
+         */
+        public Builder withQueueCapacity(int capacity) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("Invalid capacity: " + capacity);
+            queueCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Specify what happens to a task when the queue is full.  Rejections are reported to
+         * TaskPoolMonitor#onRejected.  Not applied to work stealing pools, their queues are unbounded.
+         *
+         * @param policy One of the REJECT_ policies, REJECT_FAIL by default
+         */
+        public Builder withRejectionPolicy(@RejectionPolicy int policy) {
+            rejectionPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Deliver results on an executor instead of the looper.  Chained background work
+         * doesn't need to go through the main thread, use INLINE_EXECUTOR to deliver on the
+         * worker thread that ran the task.
+         *
+         * @param resultExecutor The executor, null to deliver on the looper
+         */
+        public Builder withResultExecutor(Executor resultExecutor) {
+            this.resultExecutor = resultExecutor;
+            return this;
+        }
+
+        /**
+         * Deliver the results completed during a frame together, at the start of the next
+         * frame, instead of one looper message per result.  Callbacks implementing
+         * Result.BatchCallback are told when the frame's batch has been delivered.
+         *
+         * Only applies to results delivered on the looper.
+         *
+         * @param frameBatching True to batch results per frame
+         */
+        public Builder withFrameBatching(boolean frameBatching) {
+            this.frameBatching = frameBatching;
+            return this;
+        }
+
+        /**
+         * Periodically report the pool's metrics to TaskPoolMonitor#onMetrics
+         *
+         * @param millis The reporting interval, 0 to only report when reportMetrics() is called
+         */
+        public Builder withMetricsInterval(long millis) {
+            metricsInterval = millis;
+            return this;
+        }
+
+        /**
+         * Specify how many tasks executed with executeWhenIdle can be running at once.
+         * The looper has to go idle again before more are dispatched.
+         *
+         * @param budget The number of idle tasks in flight, 1 by default
+         */
+        public Builder withIdleBudget(int budget) {
+            if (budget <= 0)
+                throw new IllegalArgumentException("Invalid budget: " + budget);
+            idleBudget = budget;
+            return this;
+        }
+
+        /**
+         * Time the delivery of results, and each of their callbacks, on the main thread and
+         * report the ones that run past the frame budget, with a sample of the main thread's
+         * stack, to the TaskPoolMonitor.
+         *
+         * @param budgetMillis The frame budget, for example 16ms
+         * @param sampleRate The fraction of deliveries to time, 1 for debug builds and
+         *                   something small in production
+         * @see TaskPoolMonitor#onStall(TaskPool, TaskStall)
+         */
+        public Builder withStallWatchdog(long budgetMillis, float sampleRate) {
+            if (budgetMillis <= 0)
+                throw new IllegalArgumentException("Invalid budget: " + budgetMillis);
+            if (sampleRate < 0 || sampleRate > 1)
+                throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+            stallBudget = budgetMillis;
+            stallSampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Keep the successful results of tasks that declare a memoize TTL in memory, and
+         * complete repeated tasks from them without running
+         *
+         * @param maxEntries The most results kept, least recently used are dropped first
+         * @see Task#getMemoizeTtl()
+         */
+        public Builder withMemoization(int maxEntries) {
+            if (maxEntries <= 0)
+                throw new IllegalArgumentException("Invalid max entries: " + maxEntries);
+            memoizedEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Size the pool between the bounds from how much of its tasks' time is spent blocked
+         * rather than on the CPU, and how many tasks are waiting.  I/O bound pools grow
+         * toward the max while CPU bound pools stay close to the number of CPUs.
+         * Overrides withThreads() and isn't applied to work stealing pools.
+         *
+         * @param minThreads The fewest threads the pool keeps
+         * @param maxThreads The most threads the pool grows to
+         * @see TaskPoolMonitor#onResize(TaskPool, int, int, float)
+         */
+        public Builder withAdaptiveSizing(int minThreads, int maxThreads) {
+            if (minThreads <= 0 || maxThreads < minThreads)
+                throw new IllegalArgumentException("Invalid bounds: " + minThreads + "-" + maxThreads);
+            adaptiveMinThreads = minThreads;
+            adaptiveMaxThreads = maxThreads;
+            return this;
+        }
+
+        /**
+         * Specify how often an adaptive pool re-evaluates its size
+         *
+         * @param millis The interval, 1000 by default
+         */
+        public Builder withAdaptiveInterval(long millis) {
+            if (millis <= 0)
+                throw new IllegalArgumentException("Invalid interval: " + millis);
+            adaptiveInterval = millis;
+            return this;
+        }
+
         /**
          * Specify a list of interceptors
          *
@@ -339,38 +1019,316 @@ public final class TaskPool implements Handler.Callback {
          * Build the TaskPool
          */
         public TaskPool build() {
-            return new TaskPool(mainLooper, name, maxThreads, interceptors);
+            return new TaskPool(this);
         }
 
     }
 
-    final ArrayMap<String, Task<?>> runningIds = new ArrayMap<>();
-    final ArrayMap<String, Queue<TaskRunnable>> pendingTasks = new ArrayMap<>();
+    /**
+     * Task ID to the lane of the running task and the tasks waiting behind it
+     */
+    final ConcurrentHashMap<String, TaskLane> lanes = new ConcurrentHashMap<>();
 
     public static boolean isRunning(TaskPool pool, Task task) {
         if (pool == null || task == null)
             return false;
-        synchronized (pool.runningIds) {
-            return pool.runningIds.containsKey(task.getId());
-        }
+        return pool.lanes.containsKey(task.getId());
     }
 
     public static boolean isRunning(Task task) {
         if (task == null)
             return false;
         for (TaskPool pool : TASK_POOLS.values()) {
-            synchronized (pool.runningIds) {
-                if (pool.runningIds.containsKey(task.getId()))
-                    return true;
-            }
+            if (pool.lanes.containsKey(task.getId()))
+                return true;
         }
         return false;
     }
 
+    /**
+     * Fail a runnable that was never run, passing on the lane if it owns one
+     */
+    void fail(TaskRunnable runnable, Exception err) {
+        clearDeadline(runnable);
+        TaskLane lane = runnable.lane;
+        if (lane != null) {
+            runnable.lane = null;
+            handoff(runnable.task.getId(), lane);
+        }
+        runnable.task.onException(err);
+        deliver(runnable, MESSAGE_QUEUE_FAILED);
+    }
+
+    /**
+     * Remove an interrupted task's runnable from the queue, failing it if it hadn't been
+     * dispatched yet.  Runnables already waiting behind a task with the same ID fail when
+     * they are dispatched.
+     */
+    void dequeue(TaskRunnable runnable, Task<?> task) {
+        if (runnable.task != task || !(poolExecutor instanceof ThreadPoolExecutor))
+            return;
+        if (!((ThreadPoolExecutor) poolExecutor).remove(runnable) && !overflow.remove(runnable))
+            return;
+        if (runnable.task != task) {
+            // recycled for another task while we were looking, put it back
+            try {
+                poolExecutor.execute(runnable);
+            } catch (RejectedExecutionException err) {
+                fail(runnable, err);
+            }
+            return;
+        }
+        if (LOG.isLoggable(Log.INFO))
+            LOG.i("Removed interrupted task from queue (" + task.getLogKey() + ")");
+        fail(runnable, task.newInterruptedException());
+    }
+
+    void clearDeadline(TaskRunnable runnable) {
+        ScheduledFuture<?> deadline = runnable.deadline;
+        if (deadline != null) {
+            runnable.deadline = null;
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     * Move overflowed runnables back into the queue while there is room
+     */
+    void drainOverflow() {
+        if (overflow.isEmpty())
+            return;
+        BlockingQueue<Runnable> queue = ((ThreadPoolExecutor) poolExecutor).getQueue();
+        TaskRunnable runnable;
+        while (queue.remainingCapacity() > 0 && (runnable = overflow.poll()) != null) {
+            if (!queue.offer(runnable)) {
+                overflow.add(runnable);
+                break;
+            }
+        }
+    }
+
+    class RejectionHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("TaskPool " + name + " is shutdown");
+            TaskRunnable runnable = (TaskRunnable) r;
+            if (runnable.lane != null) {
+                // already admitted once, waiting behind its ID, so it isn't subject to the policy
+                overflow.add(runnable);
+                return;
+            }
+            metrics.rejected.incrementAndGet();
+            TaskPoolListener listener = LISTENER;
+            if (listener instanceof TaskPoolMonitor)
+                ((TaskPoolMonitor) listener).onRejected(TaskPool.this, runnable.task, rejectionPolicy);
+            switch (rejectionPolicy) {
+                case REJECT_BLOCK:
+                    if (Looper.myLooper() == handler.getLooper()) {
+                        // blocking the looper would freeze the UI
+                        overflow.add(runnable);
+                        break;
+                    }
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException err) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for queue", err);
+                    }
+                    break;
+                case REJECT_CALLER_RUNS:
+                    runnable.run();
+                    break;
+                case REJECT_DISCARD_LOWEST:
+                    TaskRunnable dropped = (TaskRunnable) ((TaskQueue) executor.getQueue()).offerOrReplaceLowest(runnable);
+                    if (dropped == runnable)
+                        throw new RejectedExecutionException("TaskPool " + name + " is full of higher priority tasks");
+                    if (dropped != null)
+                        fail(dropped, new RejectedExecutionException("Dropped for a higher priority task"));
+                    break;
+                case REJECT_OVERFLOW:
+                    overflow.add(runnable);
+                    break;
+                case REJECT_FAIL:
+                default:
+                    throw new RejectedExecutionException("TaskPool " + name + " is full");
+            }
+        }
+
+    }
+
+    /**
+     * Pass ownership of the lane to the next pending task and submit it to the pool,
+     * or retire the lane if there isn't one
+     */
+    void handoff(String taskId, TaskLane lane) {
+        TaskRunnable next = lane.next();
+        if (next != null) {
+            if (LOG.isLoggable(Log.INFO))
+                LOG.i("Already pending (" + taskId + "), sending request");
+            next.lane = lane;
+            try {
+                poolExecutor.execute(next);
+            } catch (RejectedExecutionException err) {
+                LOG.e("Error dispatching", err);
+                fail(next, err);
+            }
+        } else {
+            lanes.remove(taskId, lane);
+        }
+    }
+
+    /**
+     * Delivers the result of a running task to the Result of a task coalesced with it,
+     * on the coalesced task's result executor or the pool's looper.
+     */
+    class CoalescedCallback implements Result.SimpleCallback<Object>, Result.InlineCallback, Runnable {
+
+        final Result<Object> running;
+        final Result<Object> result;
+        final Executor resultExecutor;
+        final Class<?> taskClass;
+        final String logKey;
+
+        CoalescedCallback(Result<Object> running, Result<Object> result, Executor resultExecutor,
+                          Class<?> taskClass, String logKey) {
+            this.running = running;
+            this.result = result;
+            this.resultExecutor = resultExecutor;
+            this.taskClass = taskClass;
+            this.logKey = logKey;
+        }
+
+        @Override
+        public void onResult(Object data, Exception err, Object handle) {
+            if (resultExecutor != null)
+                resultExecutor.execute(this);
+            else if (handler.getLooper() == Looper.myLooper())
+                run();
+            else
+                handler.post(this);
+        }
+
+        @Override
+        public void run() {
+            StallWatchdog.Watch watch = beginWatch(taskClass, logKey);
+            try {
+                Exception err = running.getException();
+                if (err != null)
+                    result.onExceptionWithResult(err, running.uncheckedGet(), running.isFromCache());
+                else
+                    result.onResult(running.uncheckedGet(), running.isFromCache());
+            } finally {
+                endWatch(watch);
+            }
+        }
+
+    }
+
+    /**
+     * The pool delivering a result on the current worker, and how many continuations deep.
+     * Callbacks that need the looper are posted to it through the fusion, so the watchdog
+     * still times them as deliveries of the task.
+     */
+    static final class Fusion implements Executor {
+
+        TaskPool pool;
+        Task<?> task;
+        int depth;
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            pool.looperExecutor.execute(new WatchedDelivery(pool, task, command));
+        }
+
+    }
+
+    /**
+     * A delivery posted outside of onDeliver, timed by the pool's stall watchdog
+     */
+    static final class WatchedDelivery implements Runnable {
+
+        final TaskPool pool;
+        final Class<?> taskClass;
+        final String logKey;
+        final Runnable delivery;
+
+        WatchedDelivery(TaskPool pool, Task<?> task, Runnable delivery) {
+            this.pool = pool;
+            this.taskClass = task != null ? task.getClass() : delivery.getClass();
+            this.logKey = task != null ? task.getLogKey() : null;
+            this.delivery = delivery;
+        }
+
+        @Override
+        public void run() {
+            StallWatchdog.Watch watch = pool.beginWatch(taskClass, logKey);
+            try {
+                delivery.run();
+            } finally {
+                pool.endWatch(watch);
+            }
+        }
+
+    }
+
+    /**
+     * Interrupts a task whose time budget has been spent, unless it has already been delivered
+     */
+    static class Deadline implements Runnable {
+
+        private final Task<?> task;
+        private final Result<?> result;
+
+        Deadline(Task<?> task, Result<?> result) {
+            this.task = task;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            if (task.getResult() != result)
+                return;
+            if (LOG.isLoggable(Log.INFO))
+                LOG.i("Deadline passed (" + task.getLogKey() + ")");
+            task.interrupt(true);
+        }
+
+    }
+
+    class ForkedRunnable implements Runnable {
+
+        private final AtomicBoolean ran = new AtomicBoolean();
+        private final Task<?> task;
+
+        ForkedRunnable(Task<?> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (!ran.compareAndSet(false, true))
+                return;
+            task.run();
+            task.deliverResult(EMPTY);
+        }
+
+    }
+
     class TaskRunnable implements Runnable {
 
         Task task;
         long start;
+        int priority;
+        long order;
+        long sequence;
+        TaskLane lane;
+        Executor resultExecutor;
+        long queued;
+        long finished;
+        Class<?> taskClass;
+        volatile ScheduledFuture<?> deadline;
 
         TaskRunnable() {
         }
@@ -381,24 +1339,34 @@ public final class TaskPool implements Handler.Callback {
             final String logKey = task.getLogKey();
             if (LOG.isLoggable(Log.INFO))
                 LOG.i("Running task (" + logKey + ")");
-            synchronized (runningIds) {
-                if (runningIds.containsKey(taskId)) {
-                    if (LOG.isLoggable(Log.INFO))
-                        LOG.i("Already pending (" + logKey + "), queuing request");
-                    Queue<TaskRunnable> tasks = pendingTasks.get(taskId);
-                    if (tasks == null) {
-                        tasks = taskQueues.acquire();
-                        if (tasks == null)
-                            tasks = new ArrayDeque<>();
-                        pendingTasks.put(taskId, tasks);
+            TaskLane lane = this.lane;
+            this.lane = null;
+            if (lane == null) {
+                for (;;) {
+                    lane = lanes.get(taskId);
+                    if (lane == null) {
+                        lane = new TaskLane(task);
+                        if (lanes.putIfAbsent(taskId, lane) == null)
+                            break;
+                    } else if (coalesce(lane)) {
+                        return;
+                    } else if (lane.enqueue(this)) {
+                        if (LOG.isLoggable(Log.INFO))
+                            LOG.i("Already pending (" + logKey + "), queuing request");
+                        return;
+                    } else {
+                        lanes.remove(taskId, lane);
                     }
-                    tasks.add(this);
-                    return;
                 }
-                runningIds.put(taskId, task);
-                if (listener != null)
-                    listener.onStart(task);
+            } else {
+                lane.setTask(task);
             }
+            TaskListener listener = TaskPool.this.listener;
+            if (listener != null)
+                listener.onStart(task);
+            taskClass = task.getClass();
+            final long runStart = System.nanoTime();
+            metrics.onStart(taskClass, runStart - queued);
             long start = System.currentTimeMillis();
             if (interceptors != null) {
                 for (TaskInterceptor interceptor : interceptors) {
@@ -408,17 +1376,16 @@ public final class TaskPool implements Handler.Callback {
                             task.onIntercepted(intercepted);
                             Task oldTask = task;
                             task = intercepted;
-                            synchronized (runningIds) {
-                                runningIds.put(taskId, task);
-                                if (listener != null)
-                                    listener.onIntercepted(oldTask, task);
-                            }
+                            lane.setTask(task);
+                            metrics.intercepted.incrementAndGet();
+                            if (listener != null)
+                                listener.onIntercepted(oldTask, task);
                         } else {
+                            Task discarded = task;
                             task.onDiscarded(this);
-                            synchronized (runningIds) {
-                                if (listener != null)
-                                    listener.onDiscard(task);
-                            }
+                            metrics.discarded.incrementAndGet();
+                            if (listener != null)
+                                listener.onDiscard(discarded);
                             task = null;
                             break;
                         }
@@ -426,39 +1393,51 @@ public final class TaskPool implements Handler.Callback {
                 }
             }
             if (task != null) {
+                final PoolSizer sizer = TaskPool.this.sizer;
+                final long cpuStart = sizer != null ? PoolSizer.cpuTime() : 0;
+                final long wallStart = sizer != null ? System.nanoTime() : 0;
                 try {
                     task.run();
                 } finally {
-                    synchronized (runningIds) {
-                        if (listener != null)
-                            listener.onFinish(task);
-                    }
+                    if (sizer != null)
+                        sizer.onRun(System.nanoTime() - wallStart, cpuStart < 0 ? -1 : PoolSizer.cpuTime() - cpuStart);
+                    if (listener != null)
+                        listener.onFinish(task);
                 }
+                long ttl;
+                if (memo != null && (ttl = task.getMemoizeTtl()) > 0 && task.isResultSuccessful())
+                    memo.put(task, task.getTaskResult(), ttl);
                 if (LOG.isLoggable(Log.INFO)) {
                     LOG.i("Took " + (System.currentTimeMillis() - start)
                             + "ms to run, " + (System.currentTimeMillis() - this.start) + "ms total to execute (" + logKey + ")");
                 }
             }
-            TaskRunnable next = null;
-            synchronized (runningIds) {
-                Queue<TaskRunnable> pending = pendingTasks.get(taskId);
-                if (pending != null) {
-                    next = pending.poll();
-                    if (pending.isEmpty()) {
-                        pendingTasks.remove(taskId);
-                        taskQueues.release(pending);
-                    }
-                    runningIds.remove(taskId);
-                } else {
-                    runningIds.remove(taskId);
-                }
-            }
-            if (next != null) {
-                if (LOG.isLoggable(Log.INFO))
-                    LOG.i("Already pending (" + logKey + "), sending request");
-                handler.obtainMessage(MESSAGE_QUEUE, next).sendToTarget();
-            }
-            handler.obtainMessage(MESSAGE_RESULT, this).sendToTarget();
+            clearDeadline(this);
+            finished = System.nanoTime();
+            metrics.onFinish(taskClass, finished - runStart);
+            handoff(taskId, lane);
+            if (canFuse(this))
+                deliverFused(this);
+            else
+                deliver(this, MESSAGE_RESULT);
+            drainOverflow();
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean coalesce(TaskLane lane) {
+            if (!coalescing && !task.shouldCoalesce())
+                return false;
+            Result running = lane.result;
+            if (running == null || lane.isRetired())
+                return false;
+            // onCoalesced detaches the task from this runnable
+            Class<?> taskClass = task.getClass();
+            String logKey = task.getLogKey();
+            Result result = task.onCoalesced(this);
+            metrics.coalesced.incrementAndGet();
+            running.addCallback(new CoalescedCallback(running, result, resultExecutor, taskClass, logKey));
+            deliver(this, MESSAGE_RESULT);
+            return true;
         }
 
     }
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and saturation counters for a TaskPool.
+ *
+ * Queue wait is the time from execute until the task starts running (including waiting behind
+ * a task with the same ID), run is the time spent in Task#run and delivery is the time from
+ * the task finishing until its Result is delivered.
+ *
+ * @see TaskPool#getMetrics()
+ * @see TaskPoolMonitor#onMetrics(TaskPool, TaskPoolMetrics)
+ */
+public final class TaskPoolMetrics {
+
+    private final TaskPool pool;
+
+    final Timings timings = new Timings();
+    final ConcurrentHashMap<Class<?>, Timings> taskTimings = new ConcurrentHashMap<>();
+
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong intercepted = new AtomicLong();
+    final AtomicLong discarded = new AtomicLong();
+    final AtomicLong coalesced = new AtomicLong();
+    final AtomicLong memoized = new AtomicLong();
+    final AtomicLong fused = new AtomicLong();
+
+    TaskPoolMetrics(TaskPool pool) {
+        this.pool = pool;
+    }
+
+    Timings getTimings(Class<?> taskClass) {
+        Timings t = taskTimings.get(taskClass);
+        if (t == null) {
+            t = new Timings();
+            Timings existing = taskTimings.putIfAbsent(taskClass, t);
+            if (existing != null)
+                t = existing;
+        }
+        return t;
+    }
+
+    void onStart(Class<?> taskClass, long queueWaitNanos) {
+        active.incrementAndGet();
+        timings.queueWait.add(queueWaitNanos);
+        getTimings(taskClass).queueWait.add(queueWaitNanos);
+    }
+
+    void onFinish(Class<?> taskClass, long runNanos) {
+        active.decrementAndGet();
+        timings.run.add(runNanos);
+        getTimings(taskClass).run.add(runNanos);
+    }
+
+    void onDelivered(Class<?> taskClass, long deliveryNanos) {
+        timings.delivery.add(deliveryNanos);
+        getTimings(taskClass).delivery.add(deliveryNanos);
+    }
+
+    /**
+     * @return The number of tasks currently running
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return The number of tasks waiting for a thread
+     */
+    public int getQueuedCount() {
+        return pool.getQueuedCount();
+    }
+
+    /**
+     * @return The number of tasks waiting behind a running task with the same ID
+     */
+    public int getPendingCount() {
+        return pool.getPendingCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getInterceptedCount() {
+        return intercepted.get();
+    }
+
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return The number of tasks completed from memoized results
+     */
+    public long getMemoizedCount() {
+        return memoized.get();
+    }
+
+    /**
+     * @return The number of results delivered on the worker that ran the task, so that
+     *         continuations of the pool could run without a thread hop
+     */
+    public long getFusedCount() {
+        return fused.get();
+    }
+
+    public Histogram getQueueWait() {
+        return timings.queueWait;
+    }
+
+    public Histogram getRun() {
+        return timings.run;
+    }
+
+    public Histogram getDelivery() {
+        return timings.delivery;
+    }
+
+    /**
+     * @return The timings for each class of task run by the pool
+     */
+    public Map<Class<?>, Timings> getTaskTimings() {
+        return Collections.<Class<?>, Timings>unmodifiableMap(taskTimings);
+    }
+
+    public void reset() {
+        timings.reset();
+        taskTimings.clear();
+        rejected.set(0);
+        intercepted.set(0);
+        discarded.set(0);
+        coalesced.set(0);
+        memoized.set(0);
+        fused.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "TaskPoolMetrics{" + pool.getName()
+                + ", active=" + getActiveCount()
+                + ", queued=" + getQueuedCount()
+                + ", pending=" + getPendingCount()
+                + ", rejected=" + getRejectedCount()
+                + ", intercepted=" + getInterceptedCount()
+                + ", discarded=" + getDiscardedCount()
+                + ", coalesced=" + getCoalescedCount()
+                + ", memoized=" + getMemoizedCount()
+                + ", fused=" + getFusedCount()
+                + ", " + timings
+                + "}";
+    }
+
+    public static final class Timings {
+
+        final Histogram queueWait = new Histogram();
+        final Histogram run = new Histogram();
+        final Histogram delivery = new Histogram();
+
+        Timings() {
+        }
+
+        public Histogram getQueueWait() {
+            return queueWait;
+        }
+
+        public Histogram getRun() {
+            return run;
+        }
+
+        public Histogram getDelivery() {
+            return delivery;
+        }
+
+        void reset() {
+            queueWait.reset();
+            run.reset();
+            delivery.reset();
+        }
+
+        @Override
+        public String toString() {
+            return "queueWait=" + queueWait + ", run=" + run + ", delivery=" + delivery;
+        }
+
+    }
+
+    /**
+     * A lock free histogram of durations with power of two microsecond buckets.
+     */
+    public static final class Histogram {
+
+        static final int BUCKETS = 32;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+        }
+
+        void add(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            for (;;) {
+                long m = max.get();
+                if (micros <= m || max.compareAndSet(m, micros))
+                    break;
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++)
+                buckets.set(i, 0);
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return The mean in microseconds
+         */
+        public long getMean() {
+            long c = count.get();
+            return c == 0 ? 0 : sum.get() / c;
+        }
+
+        /**
+         * @return The max in microseconds
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile Between 0 and 1
+         * @return The upper bound, in microseconds, of the bucket holding the percentile
+         */
+        public long getPercentile(double percentile) {
+            long c = count.get();
+            if (c == 0)
+                return 0;
+            long target = (long) Math.ceil(c * Math.min(1, Math.max(0, percentile)));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target)
+                    return Math.min(1L << i, getMax());
+            }
+            return getMax();
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + getCount()
+                    + ", mean=" + getMean()
+                    + "us, p50=" + getPercentile(.5)
+                    + "us, p95=" + getPercentile(.95)
+                    + "us, max=" + getMax() + "us}";
+        }
+
+    }
+
+}
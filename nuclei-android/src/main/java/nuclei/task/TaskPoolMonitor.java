@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+/**
+ * A TaskPoolListener that is also told about saturation, metrics, resizing and stalls.
+ * Pass one to TaskPool#setListener(TaskPoolListener), listeners that only implement
+ * TaskPoolListener don't receive these.
+ */
+public interface TaskPoolMonitor extends TaskPoolListener {
+
+    /**
+     * Called when a task didn't fit in the pool's queue
+     *
+     * @param pool The saturated pool
+     * @param task The task that was rejected
+     * @param policy The rejection policy that was applied
+     * @see TaskPool.Builder#withRejectionPolicy(int)
+     */
+    void onRejected(TaskPool pool, Task<?> task, @TaskPool.RejectionPolicy int policy);
+
+    /**
+     * Called when a pool reports its metrics
+     *
+     * @see TaskPool#reportMetrics()
+     * @see TaskPool.Builder#withMetricsInterval(long)
+     */
+    void onMetrics(TaskPool pool, TaskPoolMetrics metrics);
+
+    /**
+     * Called when an adaptive pool changes its number of threads
+     *
+     * @param pool The resized pool
+     * @param oldSize The previous number of threads
+     * @param newSize The new number of threads
+     * @param blockingRatio The fraction of the tasks' time spent off the CPU that led to the change
+     * @see TaskPool.Builder#withAdaptiveSizing(int, int)
+     */
+    void onResize(TaskPool pool, int oldSize, int newSize, float blockingRatio);
+
+    /**
+     * Called on the main thread when delivering a result took longer than the frame budget
+     *
+     * @see TaskPool.Builder#withStallWatchdog(long, float)
+     */
+    void onStall(TaskPool pool, TaskStall stall);
+
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import android.support.annotation.NonNull;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, priority ordered work queue for a TaskPool.
+ *
+ * Ordering is decided by the supplied comparator when a runnable is offered, so aging
+ * has to be baked into the sort key rather than re-evaluated while waiting.
+ */
+final class TaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final PriorityQueue<Runnable> queue;
+    private final Comparator<Runnable> comparator;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    TaskQueue(int capacity, Comparator<Runnable> comparator) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        this.comparator = comparator;
+        queue = new PriorityQueue<>(Math.min(capacity, 11), comparator);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean offer(@NonNull Runnable runnable) {
+        if (runnable == null)
+            throw new NullPointerException();
+        lock.lock();
+        try {
+            if (queue.size() >= capacity)
+                return false;
+            queue.offer(runnable);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Offer the runnable, and if the queue is full, make room by dropping the lowest
+     * priority runnable.
+     *
+     * @return The runnable that was dropped, which is the supplied runnable if it is the lowest
+     *         priority, or null if nothing was dropped
+     */
+    Runnable offerOrReplaceLowest(Runnable runnable) {
+        if (runnable == null)
+            throw new NullPointerException();
+        lock.lock();
+        try {
+            if (queue.size() < capacity) {
+                queue.offer(runnable);
+                notEmpty.signal();
+                return null;
+            }
+            Runnable lowest = null;
+            for (Runnable queued : queue) {
+                if (lowest == null || comparator.compare(queued, lowest) > 0)
+                    lowest = queued;
+            }
+            if (lowest == null || comparator.compare(runnable, lowest) >= 0)
+                return runnable;
+            queue.remove(lowest);
+            queue.offer(runnable);
+            notEmpty.signal();
+            return lowest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(@NonNull Runnable runnable) throws InterruptedException {
+        if (runnable == null)
+            throw new NullPointerException();
+        lock.lockInterruptibly();
+        try {
+            while (queue.size() >= capacity)
+                notFull.await();
+            queue.offer(runnable);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        if (runnable == null)
+            throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (queue.size() >= capacity) {
+                if (nanos <= 0)
+                    return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            queue.offer(runnable);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty())
+                notEmpty.await();
+            Runnable runnable = queue.poll();
+            notFull.signal();
+            return runnable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            Runnable runnable = queue.poll();
+            notFull.signal();
+            return runnable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            Runnable runnable = queue.poll();
+            if (runnable != null)
+                notFull.signal();
+            return runnable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            return queue.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            boolean removed = queue.remove(o);
+            if (removed)
+                notFull.signal();
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            queue.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(@NonNull Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(@NonNull Collection<? super Runnable> c, int maxElements) {
+        if (c == this)
+            throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && !queue.isEmpty()) {
+                c.add(queue.poll());
+                count++;
+            }
+            if (count > 0)
+                notFull.signalAll();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Object[] toArray() {
+        lock.lock();
+        try {
+            return queue.toArray();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A snapshot iterator, removal goes back through the queue
+     */
+    @NonNull
+    @Override
+    public Iterator<Runnable> iterator() {
+        final Object[] snapshot = toArray();
+        return new Iterator<Runnable>() {
+            int index;
+            Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return index < snapshot.length;
+            }
+
+            @Override
+            public Runnable next() {
+                if (index >= snapshot.length)
+                    throw new NoSuchElementException();
+                last = (Runnable) snapshot[index++];
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                TaskQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+}
@@ -22,18 +22,14 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Parcelable;
 import android.os.PersistableBundle;
-import android.support.v4.util.ArrayMap;
+import android.util.Base64;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.gcm.*;
 import com.google.android.gms.gcm.Task;
 
-import java.io.Serializable;
-import java.util.Map;
-
 /**
  * A class for scheduling tasks.  If API 21+, it will default to the JobScheduler service,
  * if Prior to API 21, it will fallback to GCM.
@@ -45,6 +41,11 @@ import java.util.Map;
  * And<br />
  * http://developer.android.com/reference/android/app/job/JobScheduler.html<br />
  * <br />
+ * Tasks are stored in the job's extras as a single TaskCodec blob.
+ * <br />
+ * Batched one off tasks (see Builder#setBatched(boolean)) are kept in a local TaskJobQueue and
+ * run together by a single job.
+ * <br />
  * Two additional classes assist in these instructions:<br />
  * @see TaskGcmService (for GCM support)
  * @see TaskJobService (for API 21+ support)
@@ -52,6 +53,7 @@ import java.util.Map;
 public final class TaskScheduler {
 
     protected static final String TASK_NAME = "__task__name__";
+    static final String TASK_DATA = "__task__data__";
 
     public static final int NETWORK_STATE_ANY = 1;
     public static final int NETWORK_STATE_CONNECTED = 2;
@@ -63,6 +65,11 @@ public final class TaskScheduler {
     public static final int BACKOFF_POLICY_LINEAR = 0;
     public static final int BACKOFF_POLICY_EXPONENTIAL = 1;
 
+    /**
+     * GCM needs the end of a window, used when only its start is set
+     */
+    static final long DEFAULT_WINDOW_SECONDS = 60 * 60;
+
     private final Builder mBuilder;
 
     /**
@@ -81,6 +88,12 @@ public final class TaskScheduler {
     }
 
     public void schedule(Context context) {
+        if (mBuilder.mBatched) {
+            TaskJobQueue queue = TaskJobQueue.getInstance(context);
+            queue.add(mBuilder);
+            queue.schedule(context, false);
+            return;
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !mBuilder.mForceGcm) {
             onScheduleJobL(context);
         } else {
@@ -89,6 +102,9 @@ public final class TaskScheduler {
     }
 
     public static void cancel(Context context, nuclei.task.Task<?> task, boolean forceGcm) {
+        TaskJobQueue queue = TaskJobQueue.getExistingInstance(context);
+        if (queue != null)
+            queue.remove(task.getTaskTag());
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !forceGcm) {
             cancelL(context, task);
         } else {
@@ -112,6 +128,9 @@ public final class TaskScheduler {
     }
 
     public static void cancelAll(Context context, boolean forceGcm) {
+        TaskJobQueue queue = TaskJobQueue.getExistingInstance(context);
+        if (queue != null)
+            queue.clear();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !forceGcm) {
             cancelAllL(context);
         } else {
@@ -141,8 +160,12 @@ public final class TaskScheduler {
             case TASK_ONE_OFF:
                 OneoffTask.Builder oneOffBuilder = new OneoffTask.Builder();
                 builder = oneOffBuilder;
-                if (mBuilder.mWindowStartDelaySecondsSet || mBuilder.mWindowEndDelaySecondsSet)
-                    oneOffBuilder.setExecutionWindow(mBuilder.mWindowStartDelaySeconds, mBuilder.mWindowEndDelaySeconds);
+                if (mBuilder.mWindowStartDelaySecondsSet || mBuilder.mWindowEndDelaySecondsSet) {
+                    long start = mBuilder.mWindowStartDelaySecondsSet ? mBuilder.mWindowStartDelaySeconds : 0;
+                    oneOffBuilder.setExecutionWindow(start, mBuilder.mWindowEndDelaySecondsSet
+                            ? mBuilder.mWindowEndDelaySeconds
+                            : start + DEFAULT_WINDOW_SECONDS);
+                }
                 break;
             case TASK_PERIODIC:
                 builder = new PeriodicTask.Builder()
@@ -153,39 +176,8 @@ public final class TaskScheduler {
                 throw new IllegalArgumentException();
         }
 
-        ArrayMap<String, Object> map = new ArrayMap<>();
-        mBuilder.mTask.serialize(map);
         Bundle extras = new Bundle();
-        for (Map.Entry<String, Object> entry : map.entrySet()) {
-            Object v = entry.getValue();
-            if (v == null)
-                continue;
-            if (v instanceof Integer)
-                extras.putInt(entry.getKey(), (int) v);
-            else if (v instanceof Double)
-                extras.putDouble(entry.getKey(), (double) v);
-            else if (v instanceof Long)
-                extras.putLong(entry.getKey(), (long) v);
-            else if (v instanceof String)
-                extras.putString(entry.getKey(), (String) v);
-            else if (v instanceof String[])
-                extras.putStringArray(entry.getKey(), (String[]) v);
-            else if (v instanceof boolean[])
-                extras.putBooleanArray(entry.getKey(), (boolean[]) v);
-            else if (v instanceof double[])
-                extras.putDoubleArray(entry.getKey(), (double[]) v);
-            else if (v instanceof long[])
-                extras.putLongArray(entry.getKey(), (long[]) v);
-            else if (v instanceof int[])
-                extras.putIntArray(entry.getKey(), (int[]) v);
-            else if (v instanceof Parcelable)
-                extras.putParcelable(entry.getKey(), (Parcelable) v);
-            else if (v instanceof Serializable)
-                extras.putSerializable(entry.getKey(), (Serializable) v);
-            else
-                throw new IllegalArgumentException("Invalid Type: " + entry.getKey());
-        }
-        extras.putString(TASK_NAME, mBuilder.mTask.getClass().getName());
+        extras.putByteArray(TASK_DATA, TaskCodec.encode(mBuilder.mTask));
 
         builder.setExtras(extras)
                 .setPersisted(mBuilder.mPersisted)
@@ -214,35 +206,9 @@ public final class TaskScheduler {
     private void onScheduleJobL(Context context) {
         JobInfo.Builder builder = new JobInfo.Builder(mBuilder.mTask.getTaskId(), new ComponentName(context, TaskJobService.class));
 
-        ArrayMap<String, Object> map = new ArrayMap<>();
-        mBuilder.mTask.serialize(map);
         PersistableBundle extras = new PersistableBundle();
-        for (Map.Entry<String, Object> entry : map.entrySet()) {
-            Object v = entry.getValue();
-            if (v == null)
-                continue;
-            if (v instanceof Integer)
-                extras.putInt(entry.getKey(), (int) v);
-            else if (v instanceof Double)
-                extras.putDouble(entry.getKey(), (double) v);
-            else if (v instanceof Long)
-                extras.putLong(entry.getKey(), (long) v);
-            else if (v instanceof String)
-                extras.putString(entry.getKey(), (String) v);
-            else if (v instanceof String[])
-                extras.putStringArray(entry.getKey(), (String[]) v);
-            else if (v instanceof boolean[] && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1)
-                extras.putBooleanArray(entry.getKey(), (boolean[]) v);
-            else if (v instanceof double[])
-                extras.putDoubleArray(entry.getKey(), (double[]) v);
-            else if (v instanceof long[])
-                extras.putLongArray(entry.getKey(), (long[]) v);
-            else if (v instanceof int[])
-                extras.putIntArray(entry.getKey(), (int[]) v);
-            else
-                throw new IllegalArgumentException("Invalid Type: " + entry.getKey());
-        }
-        extras.putString(TASK_NAME, mBuilder.mTask.getClass().getName());
+        // PersistableBundle doesn't hold byte arrays
+        extras.putString(TASK_DATA, Base64.encodeToString(TaskCodec.encode(mBuilder.mTask), Base64.NO_WRAP));
 
         switch (mBuilder.mTaskType) {
             case TASK_ONE_OFF:
@@ -310,6 +276,7 @@ public final class TaskScheduler {
         int mBackoffPolicy = -1;
         long mInitialBackoffMillis;
         boolean mForceGcm;
+        boolean mBatched;
 
         Builder(nuclei.task.Task task, int type) {
             mTask = task;
@@ -374,6 +341,19 @@ public final class TaskScheduler {
             return this;
         }
 
+        /**
+         * Store the task in the local TaskJobQueue and run it with the other batched tasks
+         * from a single job, instead of scheduling a job for it.  The job requires everything
+         * the queued tasks require, and runs no earlier than the latest of their window starts.
+         * Only one off tasks can be batched.
+         */
+        public Builder setBatched(boolean batched) {
+            if (batched && mTaskType != TASK_ONE_OFF)
+                throw new IllegalArgumentException("Only one off tasks can be batched");
+            mBatched = batched;
+            return this;
+        }
+
         public TaskScheduler build() {
             return new TaskScheduler(this);
         }
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task;
+
+import java.util.Arrays;
+
+/**
+ * A result whose delivery on the main thread took longer than the frame budget
+ *
+ * @see TaskPoolMonitor#onStall(TaskPool, TaskStall)
+ * @see TaskPool.Builder#withStallWatchdog(long, float)
+ */
+public final class TaskStall {
+
+    private final Class<?> taskClass;
+    private final String logKey;
+    private final long duration;
+    private final Class<?> callbackClass;
+    private final long callbackDuration;
+    private final int callbackCount;
+    private final StackTraceElement[] stackTrace;
+
+    TaskStall(Class<?> taskClass, String logKey, long duration, Class<?> callbackClass,
+              long callbackDuration, int callbackCount, StackTraceElement[] stackTrace) {
+        this.taskClass = taskClass;
+        this.logKey = logKey;
+        this.duration = duration;
+        this.callbackClass = callbackClass;
+        this.callbackDuration = callbackDuration;
+        this.callbackCount = callbackCount;
+        this.stackTrace = stackTrace;
+    }
+
+    public Class<?> getTaskClass() {
+        return taskClass;
+    }
+
+    /**
+     * @see Task#getLogKey()
+     */
+    public String getLogKey() {
+        return logKey;
+    }
+
+    /**
+     * @return The milliseconds spent delivering the result
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return The class of the slowest callback, or null if the result had no callbacks
+     */
+    public Class<?> getCallbackClass() {
+        return callbackClass;
+    }
+
+    /**
+     * @return The milliseconds spent in the slowest callback
+     */
+    public long getCallbackDuration() {
+        return callbackDuration;
+    }
+
+    public int getCallbackCount() {
+        return callbackCount;
+    }
+
+    /**
+     * @return The main thread's stack once the budget was spent, or null if it wasn't sampled
+     *         in time
+     */
+    public StackTraceElement[] getStackTrace() {
+        return stackTrace;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskStall{" + logKey
+                + ", task=" + taskClass.getName()
+                + ", duration=" + duration
+                + "ms, callback=" + (callbackClass == null ? null : callbackClass.getName())
+                + ", callbackDuration=" + callbackDuration
+                + "ms, callbacks=" + callbackCount
+                + ", stackTrace=" + (stackTrace == null ? null : Arrays.toString(stackTrace))
+                + "}";
+    }
+
+}
@@ -17,6 +17,8 @@ package nuclei.task;
 
 import android.app.Application;
 
+import java.util.List;
+
 public final class Tasks {
 
     private static TaskPool sDefault;
@@ -50,6 +52,22 @@ public final class Tasks {
         return sDefault.execute(handle, task);
     }
 
+    public static <I, O> Result<List<O>> parallelMap(List<? extends I> inputs, TaskMapper<I, O> mapper) {
+        return sDefault.parallelMap(null, inputs, mapper);
+    }
+
+    public static <I, O> Result<List<O>> parallelMap(ContextHandle handle, List<? extends I> inputs, TaskMapper<I, O> mapper) {
+        return sDefault.parallelMap(handle, inputs, mapper);
+    }
+
+    public static <T> Result<T> executeWhenIdle(Task<T> task) {
+        return sDefault.executeWhenIdle(null, task);
+    }
+
+    public static TaskGroup newGroup(ContextHandle handle) {
+        return sDefault.newGroup(handle);
+    }
+
     public static <T> T executeNow(Task<T> task) {
         return sDefault.executeNow(task);
     }
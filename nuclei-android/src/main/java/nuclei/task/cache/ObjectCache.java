@@ -0,0 +1,164 @@
+/**
+ * Copyright 2016 YouVersion
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nuclei.task.cache;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * A bounded, in memory tier of deserialized objects in front of a SimpleCache, so a hot
+ * entry isn't read and deserialized again each time it's loaded.
+ * <br />
+ * Objects are keyed the same as their SimpleCache entry and remember when that entry was
+ * created, an object is only returned for the same entry and expires with it.  Objects are
+ * shared by everything that loads them, so they shouldn't be modified.
+ */
+public final class ObjectCache {
+
+    /**
+     * Estimates the size of an object, in bytes
+     */
+    public interface Sizer {
+
+        int sizeOf(String key, Object object);
+
+    }
+
+    static final class Entry {
+
+        final Object object;
+        final long created;
+        final long ttl;
+        final String etag;
+        final String lastModified;
+        final int size;
+
+        Entry(Object object, SimpleCache.Entry entry, int size) {
+            this.object = object;
+            this.created = entry.getCreated();
+            this.ttl = entry.getTtl();
+            this.etag = entry.getETag();
+            this.lastModified = entry.getLastModified();
+            this.size = size;
+        }
+
+        boolean isExpired() {
+            return created + ttl < System.currentTimeMillis();
+        }
+
+    }
+
+    private final LruCache<String, Entry> cache;
+    private final Sizer sizer;
+
+    /**
+     * @param maxSize The most bytes, as estimated by the sizer, kept in memory
+     * @param sizer Estimates the size of each object
+     */
+    public ObjectCache(int maxSize, Sizer sizer) {
+        this.sizer = sizer;
+        cache = new LruCache<String, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.size;
+            }
+        };
+    }
+
+    /**
+     * Look up an object by key alone, without touching the SimpleCache
+     *
+     * @return The header of the SimpleCache entry an unexpired object was kept for, pass it to
+     *         get(SimpleCache.Entry) for the object.  It has no content, null if there isn't one.
+     */
+    public SimpleCache.Entry getEntry(String key) {
+        Entry e = cache.get(key);
+        if (e == null)
+            return null;
+        if (e.isExpired()) {
+            cache.remove(key);
+            return null;
+        }
+        return new SimpleCache.Entry(key, e.created, e.ttl, e.etag, e.lastModified);
+    }
+
+    /**
+     * @return The object kept for the SimpleCache entry, or null if there isn't one
+     */
+    public Object get(SimpleCache.Entry entry) {
+        Entry e = cache.get(entry.getKey());
+        if (e == null)
+            return null;
+        if (e.created != entry.getCreated() || e.isExpired()) {
+            cache.remove(entry.getKey());
+            return null;
+        }
+        return e.object;
+    }
+
+    /**
+     * Keep the object loaded from, or saved to, the SimpleCache entry
+     */
+    public void put(SimpleCache.Entry entry, Object object) {
+        if (object == null)
+            return;
+        int size = Math.max(1, sizer.sizeOf(entry.getKey(), object));
+        if (size > cache.maxSize())
+            cache.remove(entry.getKey());
+        else
+            cache.put(entry.getKey(), new Entry(object, entry, size));
+    }
+
+    /**
+     * Keep the object of a stale SimpleCache entry for the entry it was refreshed to
+     *
+     * @see SimpleCache#refresh(SimpleCache.Entry, int, String, String)
+     */
+    public void refresh(SimpleCache.Entry stale, SimpleCache.Entry refreshed) {
+        Entry e = cache.get(stale.getKey());
+        if (e != null && e.created == stale.getCreated())
+            cache.put(stale.getKey(), new Entry(e.object, refreshed, e.size));
+    }
+
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    /**
+     * Remove every object whose key is accepted by the filter
+     */
+    public void evict(SimpleCache.KeyFilter filter) {
+        for (String key : cache.snapshot().keySet()) {
+            if (filter.accept(key))
+                cache.remove(key);
+        }
+    }
+
+    public void evictAll() {
+        cache.evictAll();
+    }
+
+    /**
+     * @return The estimated bytes kept in memory
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    public int maxSize() {
+        return cache.maxSize();
+    }
+
+}
@@ -21,6 +21,7 @@ import java.io.Flushable;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import okhttp3.internal.Util;
 import okhttp3.internal.cache.DiskLruCache;
@@ -32,7 +33,7 @@ import okio.Okio;
 
 public final class SimpleCache implements Closeable, Flushable {
 
-    private static final int VERSION = 1;
+    private static final int VERSION = 2;
     private static final int HEADER = 0;
     private static final int CONTENT = 1;
 
@@ -40,12 +41,44 @@ public final class SimpleCache implements Closeable, Flushable {
         return ByteString.encodeUtf8(key).md5().hex();
     }
 
+    /**
+     * Selects cache keys to evict
+     *
+     * @see #evict(KeyFilter)
+     */
+    public interface KeyFilter {
+
+        boolean accept(String key);
+
+    }
+
     final DiskLruCache cache;
 
+    /**
+     * The keys of the entries, the journal only has their hashes so it's built from the
+     * entry headers the first time it's needed.  It can hold keys of entries the
+     * DiskLruCache has since trimmed, removing those does nothing.
+     */
+    final ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<>();
+    private volatile boolean indexed;
+
     public SimpleCache(File directory, long maxSize) {
         cache = DiskLruCache.create(FileSystem.SYSTEM, directory, VERSION, 2, maxSize);
     }
 
+    private void ensureIndex() throws IOException {
+        if (indexed)
+            return;
+        synchronized (index) {
+            if (indexed)
+                return;
+            Iterator<String> keys = keys();
+            while (keys.hasNext())
+                index.add(keys.next());
+            indexed = true;
+        }
+    }
+
     public Iterator<String> keys() throws IOException { // copy of okhttp3.Cache.urls()
         return new Iterator<String>() {
             final Iterator<DiskLruCache.Snapshot> delegate = cache.snapshots();
@@ -79,14 +112,18 @@ public final class SimpleCache implements Closeable, Flushable {
                 String result = nextKey;
                 nextKey = null;
                 canRemove = true;
+                lastKey = result;
                 return result;
             }
 
+            String lastKey;
+
             @Override
             public void remove() {
                 if (!canRemove)
                     throw new IllegalStateException("remove() before next()");
                 delegate.remove();
+                index.remove(lastKey);
             }
         };
     }
@@ -117,13 +154,25 @@ public final class SimpleCache implements Closeable, Flushable {
      * @throws IOException
      */
     public Entry put(String key, int ttl) throws IOException {
+        return put(key, ttl, null, null);
+    }
+
+    /**
+     * @param key
+     * @param ttl The number of seconds this entry is valid
+     * @param etag The ETag of the response the entry is saved from, or null
+     * @param lastModified The Last-Modified date of the response the entry is saved from, or null
+     * @return
+     * @throws IOException
+     */
+    public Entry put(String key, int ttl, String etag, String lastModified) throws IOException {
         String cacheKey = stringToKey(key);
         DiskLruCache.Editor editor = null;
         try {
             editor = cache.edit(cacheKey);
             if (editor == null)
                 return null;
-            return new Entry(key, System.currentTimeMillis(), ttl, editor);
+            return new Entry(this, key, System.currentTimeMillis(), ttl, etag, lastModified, editor);
         } catch (IOException e) {
             try {
                 if (editor != null)
@@ -134,12 +183,84 @@ public final class SimpleCache implements Closeable, Flushable {
         return null;
     }
 
+    /**
+     * Rewrite only the header of an entry, for example when the server says it hasn't been
+     * modified, so it's valid again for another ttl without touching its content.
+     *
+     * @param entry The entry to refresh
+     * @param ttl The number of seconds the entry is valid from now
+     * @return The refreshed entry, or null if the entry was removed, replaced or is being edited
+     */
+    public Entry refresh(Entry entry, int ttl, String etag, String lastModified) throws IOException {
+        String key = entry.getKey();
+        DiskLruCache.Snapshot snapshot = cache.get(stringToKey(key));
+        if (snapshot == null)
+            return null;
+        DiskLruCache.Editor editor = null;
+        try {
+            Entry current = new Entry(snapshot);
+            if (!current.matches(key, VERSION) || current.getCreated() != entry.getCreated())
+                return null;
+            editor = snapshot.edit();
+            if (editor == null)
+                return null;
+            Entry.writeHeader(editor, key, System.currentTimeMillis(), ttl * 1000L, etag, lastModified);
+            editor.commit();
+            editor = null;
+        } finally {
+            snapshot.close();
+            if (editor != null)
+                editor.abortUnlessCommitted();
+        }
+        return get(key);
+    }
+
+    /**
+     * @return False if there wasn't an entry for the key, its key is dropped from the index
+     *         either way
+     */
     public boolean remove(String key) throws IOException {
-        return cache.remove(stringToKey(key));
+        boolean removed = cache.remove(stringToKey(key));
+        index.remove(key);
+        return removed;
+    }
+
+    /**
+     * Remove every entry whose key starts with the prefix, for example everything under
+     * a user's path on logout
+     *
+     * @return The number of entries removed
+     */
+    public int evictByPrefix(String prefix) throws IOException {
+        ensureIndex();
+        int removed = 0;
+        for (String key : index.tailSet(prefix)) {
+            if (!key.startsWith(prefix))
+                break;
+            if (remove(key))
+                removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Remove every entry whose key is accepted by the filter
+     *
+     * @return The number of entries removed
+     */
+    public int evict(KeyFilter filter) throws IOException {
+        ensureIndex();
+        int removed = 0;
+        for (String key : index) {
+            if (filter.accept(key) && remove(key))
+                removed++;
+        }
+        return removed;
     }
 
     public void evictAll() throws IOException {
         cache.evictAll();
+        index.clear();
     }
 
     public boolean isClosed() {
@@ -160,12 +281,16 @@ public final class SimpleCache implements Closeable, Flushable {
 
         private final String key;
         private final int version;
+        private final SimpleCache owner;
         private final DiskLruCache.Snapshot snapshot;
         private final DiskLruCache.Editor editor;
         private final long created;
         private final long ttl;
+        private final String etag;
+        private final String lastModified;
 
         Entry(DiskLruCache.Snapshot snapshot) throws IOException {
+            this.owner = null;
             this.snapshot = snapshot;
             this.editor = null;
 
@@ -175,32 +300,97 @@ public final class SimpleCache implements Closeable, Flushable {
                 version = source.readInt();
                 created = source.readLong();
                 ttl = source.readLong();
+                etag = toValidator(source.readUtf8LineStrict());
+                lastModified = toValidator(source.readUtf8LineStrict());
             } finally {
                 source.close();
             }
         }
 
-        Entry(String key, long created, int ttl, DiskLruCache.Editor editor) throws IOException {
+        /**
+         * Only the header of an entry, as kept by the ObjectCache, it has no content to read
+         */
+        Entry(String key, long created, long ttl, String etag, String lastModified) {
+            this.owner = null;
+            this.snapshot = null;
+            this.editor = null;
+            this.key = key;
+            this.version = VERSION;
+            this.created = created;
+            this.ttl = ttl;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        Entry(SimpleCache owner, String key, long created, int ttl, String etag, String lastModified,
+              DiskLruCache.Editor editor) throws IOException {
+            this.owner = owner;
             this.snapshot = null;
             this.editor = editor;
             this.key = key;
             this.version = VERSION;
             this.created = created;
-            this.ttl = ttl * 1000;
+            this.ttl = ttl * 1000L;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            writeHeader(editor, key, created, this.ttl, etag, lastModified);
+        }
 
+        static void writeHeader(DiskLruCache.Editor editor, String key, long created, long ttl,
+                                String etag, String lastModified) throws IOException {
             BufferedSink sink = Okio.buffer(editor.newSink(HEADER));
             sink.writeUtf8(key);
             sink.writeByte('\n');
-            sink.writeInt(version);
+            sink.writeInt(VERSION);
             sink.writeLong(created);
-            sink.writeLong(this.ttl);
+            sink.writeLong(ttl);
+            sink.writeUtf8(etag == null ? "" : etag);
+            sink.writeByte('\n');
+            sink.writeUtf8(lastModified == null ? "" : lastModified);
+            sink.writeByte('\n');
             sink.close();
         }
 
+        private static String toValidator(String value) {
+            return value.length() == 0 ? null : value;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
         public long getCreated() {
             return created;
         }
 
+        /**
+         * @return The number of milliseconds this entry is valid
+         */
+        public long getTtl() {
+            return ttl;
+        }
+
+        /**
+         * @return The ETag of the response the entry was saved from, or null
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return The Last-Modified date of the response the entry was saved from, or null
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return True if the entry can be revalidated with a conditional request
+         */
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
         public boolean isExpired() {
             return getCreated() + ttl < System.currentTimeMillis();
         }
@@ -226,8 +416,11 @@ public final class SimpleCache implements Closeable, Flushable {
         public void close() throws IOException {
             if (snapshot != null)
                 snapshot.close();
-            if (editor != null)
+            if (editor != null) {
                 editor.commit();
+                // only committed entries are indexed, an aborted put leaves nothing to evict
+                owner.index.add(key);
+            }
         }
 
     }
@@ -26,6 +26,7 @@ import java.util.NoSuchElementException;
 import nuclei.logs.Logs;
 import nuclei.task.ContextHandle;
 import nuclei.task.Result;
+import nuclei.task.cache.ObjectCache;
 import nuclei.task.cache.SimpleCache;
 import nuclei.task.Task;
 import nuclei.task.TaskPool;
@@ -42,6 +43,7 @@ public final class Http {
     private static final long MAX_CACHE_SIZE = 10 * 1024 * 1024;
     private static OkHttpClient sClient;
     static SimpleCache sCache;
+    static ObjectCache sMemoryCache;
     private static TaskPool sHttpPool;
 
     private Http() {
@@ -74,11 +76,37 @@ public final class Http {
                                   OkHttpClient client,
                                   SimpleCache cache,
                                   HttpPoolBuilder builder) {
+        initialize(application, client, cache, null, builder);
+    }
+
+    /**
+     * Supply your own instance of OkHttpClient, and an in memory tier for the object cache
+     *
+     * @param memoryCache Keeps recently loaded objects so they aren't deserialized again,
+     *                    or null to always read them from the SimpleCache
+     */
+    public static void initialize(Application application,
+                                  OkHttpClient client,
+                                  SimpleCache cache,
+                                  ObjectCache memoryCache,
+                                  HttpPoolBuilder builder) {
         if (sHttpPool != null)
             throw new IllegalStateException("Already initialized");
         sClient = client;
-        sHttpPool = builder == null ? TaskPool.newBuilder(TaskPool.HTTP_POOL).build() : builder.build();
+        sHttpPool = builder == null ? newDefaultPool() : builder.build();
         sCache = cache;
+        sMemoryCache = cache != null ? memoryCache : null;
+    }
+
+    /**
+     * Requests spend most of their time waiting on the network, so the default pool sizes
+     * itself from how long its tasks block
+     */
+    static TaskPool newDefaultPool() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return TaskPool.newBuilder(TaskPool.HTTP_POOL)
+                .withAdaptiveSizing(cpus + 1, cpus * 4 + 1)
+                .build();
     }
 
     @VisibleForTesting
@@ -87,6 +115,10 @@ public final class Http {
             sHttpPool.shutdown();
         sHttpPool = null;
         sClient = null;
+        if (sMemoryCache != null) {
+            sMemoryCache.evictAll();
+            sMemoryCache = null;
+        }
         if (sCache != null)
             try {
                 sCache.flush();
@@ -124,9 +156,26 @@ public final class Http {
         return sCache;
     }
 
+    /**
+     * The in memory tier of the object cache, if there is one
+     *
+     * @return The ObjectCache or null
+     */
+    public static ObjectCache getMemoryCache() {
+        return sMemoryCache;
+    }
+
+    static void removeFromMemory(String url) {
+        ObjectCache memoryCache = sMemoryCache;
+        if (memoryCache != null)
+            memoryCache.remove(url);
+    }
+
     /**
      * Evict this task from Cache
      *
+     * Finding the URL in the OkHttp cache reads every entry's URL, OkHttp doesn't index them.
+     *
      * @param task The task to generate the URL from
      * @return True if evicted, false otherwise
      *
@@ -134,27 +183,67 @@ public final class Http {
      */
     public static boolean evict(HttpTask<?> task) throws IOException {
         final String taskUrl = task.getUrl();
+        boolean evicted = false;
         Iterator<String> urls = getHttpCache().urls();
         try {
             while (urls.hasNext()) {
                 String url = urls.next();
                 if (url.equals(taskUrl)) {
                     urls.remove();
-                    return true;
+                    evicted = true;
+                    break;
                 }
             }
         } catch (NoSuchElementException ignore) {}
-        Iterator<String> keys = getObjectCache().keys();
+        removeFromMemory(taskUrl);
+        if (sCache != null && sCache.remove(taskUrl))
+            evicted = true;
+        return evicted;
+    }
+
+    /**
+     * Evict every URL starting with the prefix from the caches, for example everything
+     * under a user's path on logout.  The object cache is indexed, but the OkHttp cache is
+     * walked entry by entry, so avoid calling this on the main thread.
+     *
+     * @param prefix The URL prefix
+     * @return The number of object cache entries evicted
+     * @throws IOException
+     */
+    public static int evictByPrefix(final String prefix) throws IOException {
+        return evict(new SimpleCache.KeyFilter() {
+            @Override
+            public boolean accept(String key) {
+                return key.startsWith(prefix);
+            }
+        }, prefix);
+    }
+
+    /**
+     * Evict every URL accepted by the filter from the caches.  Every URL in the OkHttp cache
+     * is read and passed to the filter, so avoid calling this on the main thread.
+     *
+     * @param filter Selects the URLs to evict
+     * @return The number of object cache entries evicted
+     * @throws IOException
+     */
+    public static int evict(SimpleCache.KeyFilter filter) throws IOException {
+        return evict(filter, null);
+    }
+
+    private static int evict(SimpleCache.KeyFilter filter, String prefix) throws IOException {
+        Iterator<String> urls = getHttpCache().urls();
         try {
-            while (keys.hasNext()) {
-                String key = urls.next();
-                if (key.equals(task.getUrl())) {
-                    keys.remove();
-                    return true;
-                }
+            while (urls.hasNext()) {
+                if (filter.accept(urls.next()))
+                    urls.remove();
             }
         } catch (NoSuchElementException ignore) {}
-        return false;
+        if (sMemoryCache != null)
+            sMemoryCache.evict(filter);
+        if (sCache == null)
+            return 0;
+        return prefix != null ? sCache.evictByPrefix(prefix) : sCache.evict(filter);
     }
 
     /**
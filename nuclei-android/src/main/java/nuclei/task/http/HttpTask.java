@@ -18,18 +18,28 @@ package nuclei.task.http;
 import android.content.Context;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
 
+import nuclei.task.cache.ObjectCache;
 import nuclei.task.cache.SimpleCache;
 import nuclei.logs.Log;
 import nuclei.logs.Logs;
 import nuclei.task.Task;
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 import okhttp3.internal.Util;
 import okhttp3.internal.http.HttpHeaders;
 import okhttp3.internal.http.HttpMethod;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 
 /**
  * An HttpTask to be used with a TaskPool.
@@ -43,6 +53,8 @@ public abstract class HttpTask<T> extends Task<T> {
 
     private String url;
     private boolean cache;
+    private String etag;
+    private String lastModified;
 
     @Override
     public String getId() {
@@ -57,6 +69,36 @@ public abstract class HttpTask<T> extends Task<T> {
         return Integer.MAX_VALUE;
     }
 
+    /**
+     * Whether the deserialized object can be kept in the memory tier of the object cache,
+     * and shared by every task loading the same URL
+     *
+     * @see Http#getMemoryCache()
+     */
+    protected boolean shouldCacheInMemory() {
+        return true;
+    }
+
+    /**
+     * When a cached object should be re-cached, deliver it right away and then deliver the
+     * revalidated object to the same Result, if it changed.
+     *
+     * @see #isChanged(Object, Object)
+     * @see nuclei.task.Result#isUpdate()
+     */
+    protected boolean isStaleWhileRevalidate() {
+        return false;
+    }
+
+    /**
+     * Whether the revalidated object differs from the stale one already delivered
+     *
+     * @see #isStaleWhileRevalidate()
+     */
+    protected boolean isChanged(T stale, T fresh) {
+        return !stale.equals(fresh);
+    }
+
     protected boolean shouldReCache(Context context, SimpleCache.Entry entry) {
         return isCacheExpired(context, entry);
     }
@@ -68,19 +110,49 @@ public abstract class HttpTask<T> extends Task<T> {
     @Override
     public final void run(Context context) {
         boolean cached = false;
+        T stale = null;
+        SimpleCache.Entry validated = null;
         try {
             if (cache && Http.sCache != null) {
-                SimpleCache.Entry entry = Http.sCache.get(getUrl());
-                T object = onLoadCache(context, entry);
+                ObjectCache memory = shouldCacheInMemory() ? Http.sMemoryCache : null;
+                SimpleCache.Entry entry = memory != null ? memory.getEntry(getUrl()) : null;
+                T object = entry != null ? onLoadMemory(context, memory, entry) : null;
+                if (object == null) {
+                    // the disk entry is only opened on a memory miss
+                    entry = Http.sCache.get(getUrl());
+                    object = onLoadCache(context, entry);
+                }
+                if (entry != null && entry.hasValidators())
+                    validated = entry;
                 if (object != null) {
                     cached = true;
-                    onComplete(object);
-                    if (!shouldReCache(context, entry))
+                    if (!shouldReCache(context, entry)) {
+                        onComplete(object);
                         return;
+                    }
+                    if (isStaleWhileRevalidate()) {
+                        stale = object;
+                        onStaleResult(object);
+                    } else {
+                        onComplete(object);
+                    }
                 }
             }
             Request request = toRequest(context);
-            Response response = execute(request);
+            if (validated != null && !"GET".equals(request.method()))
+                validated = null;
+            Response response = execute(validated != null ? toConditionalRequest(request, validated) : request);
+            if (validated != null && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                response.body().close();
+                T object = onNotModified(context, validated, response, !cached);
+                if (cached || object != null) {
+                    if (!cached)
+                        onComplete(object, true);
+                    return;
+                }
+                // the entry is gone, get it again
+                response = execute(request);
+            }
             try {
                 if (onResponse(context, response)) {
                     if (response.code() != 404 && !response.isSuccessful()) {
@@ -99,11 +171,20 @@ public abstract class HttpTask<T> extends Task<T> {
                                     onComplete(null);
                                 break;
                             default:
-                                T object = onDeserialize(context, response);
-                                if (object != null && cache && Http.sCache != null)
-                                    onCache(context, object);
+                                etag = response.header("ETag");
+                                lastModified = response.header("Last-Modified");
+                                T object;
+                                if (cache && Http.sCache != null && shouldCacheResponseBody()) {
+                                    object = onDeserializeAndCache(context, response);
+                                } else {
+                                    object = onDeserialize(context, response);
+                                    if (object != null && cache && Http.sCache != null)
+                                        onCache(context, object);
+                                }
                                 if (!cached)
                                     onComplete(object, response.cacheResponse() != null);
+                                else if (stale != null && object != null && isChanged(stale, object))
+                                    onComplete(object, response.cacheResponse() != null);
                                 break;
                         }
                     }
@@ -122,6 +203,7 @@ public abstract class HttpTask<T> extends Task<T> {
     protected Response execute(Request request) throws IOException {
         if (Http.sCache != null) {
             if (HttpMethod.invalidatesCache(request.method())) {
+                Http.removeFromMemory(getUrl());
                 try {
                     Http.sCache.remove(getUrl());
                 } catch (IOException ignore) {
@@ -143,24 +225,92 @@ public abstract class HttpTask<T> extends Task<T> {
         return response;
     }
 
+    /**
+     * Add the validators of a cache entry to the request, so the server can respond with
+     * 304 Not Modified instead of the body
+     */
+    protected Request toConditionalRequest(Request request, SimpleCache.Entry entry) {
+        if (request.header("If-None-Match") != null || request.header("If-Modified-Since") != null)
+            return request;
+        Request.Builder builder = request.newBuilder();
+        if (entry.getETag() != null)
+            builder.header("If-None-Match", entry.getETag());
+        if (entry.getLastModified() != null)
+            builder.header("If-Modified-Since", entry.getLastModified());
+        return builder.build();
+    }
+
+    /**
+     * The cache entry hasn't changed on the server, refresh its ttl in place and load it
+     *
+     * @param load Whether to load the object, false if it was already delivered
+     * @return The cached object, or null if it wasn't loaded or the entry is gone
+     */
+    private T onNotModified(Context context, SimpleCache.Entry entry, Response response, boolean load) throws IOException {
+        String etag = response.header("ETag", entry.getETag());
+        String lastModified = response.header("Last-Modified", entry.getLastModified());
+        SimpleCache.Entry refreshed = Http.sCache.refresh(entry, getCacheSeconds(), etag, lastModified);
+        if (refreshed == null)
+            return null;
+        if (LOG.isLoggable(Log.INFO))
+            LOG.i("Not Modified (" + getLogKey() + ")");
+        ObjectCache memory = shouldCacheInMemory() ? Http.sMemoryCache : null;
+        if (memory != null)
+            memory.refresh(entry, refreshed);
+        if (!load) {
+            Util.closeQuietly(refreshed);
+            return null;
+        }
+        return onLoadCache(context, refreshed);
+    }
+
     protected void setShouldCache(boolean cache) {
         this.cache = cache;
     }
 
+    /**
+     * Load the object from the memory tier without opening the disk entry
+     *
+     * @param entry The header of the entry the object was kept for
+     * @return The object, or null if it was evicted or has expired
+     */
+    @SuppressWarnings("unchecked")
+    private T onLoadMemory(Context context, ObjectCache memory, SimpleCache.Entry entry) {
+        if (isCacheExpired(context, entry))
+            return null;
+        T object = (T) memory.get(entry);
+        if (object != null && LOG.isLoggable(Log.INFO))
+            LOG.i("Memory Cache Hit (" + getLogKey() + ")");
+        return object;
+    }
+
+    @SuppressWarnings("unchecked")
     protected T onLoadCache(Context context, SimpleCache.Entry entry) throws IOException {
         try {
             if (entry != null) {
                 if (!isCacheExpired(context, entry)) {
-                    T object = onLoadCacheEntry(context, entry);
+                    ObjectCache memory = shouldCacheInMemory() ? Http.sMemoryCache : null;
+                    T object = memory != null ? (T) memory.get(entry) : null;
+                    if (object != null) {
+                        if (LOG.isLoggable(Log.INFO))
+                            LOG.i("Memory Cache Hit (" + getLogKey() + ")");
+                        return object;
+                    }
+                    object = onLoadCacheEntry(context, entry);
                     if (object != null) {
                         if (LOG.isLoggable(Log.INFO))
                             LOG.i("Cache Hit (" + getLogKey() + ")");
+                        if (memory != null)
+                            memory.put(entry, object);
                     }
                     return object;
                 } else {
                     if (LOG.isLoggable(Log.INFO))
                         LOG.i("Cache Expired (" + getLogKey() + ")");
-                    Http.sCache.remove(getUrl());
+                    if (!entry.hasValidators()) {
+                        Http.removeFromMemory(getUrl());
+                        Http.sCache.remove(getUrl());
+                    }
                 }
             } else {
                 if (LOG.isLoggable(Log.INFO))
@@ -179,21 +329,99 @@ public abstract class HttpTask<T> extends Task<T> {
     }
 
     protected T onLoadCacheEntry(Context context, SimpleCache.Entry entry) throws IOException {
-        throw new UnsupportedOperationException();
+        if (!shouldCacheResponseBody())
+            throw new UnsupportedOperationException();
+        Response response = new Response.Builder()
+                .request(new Request.Builder().url(getUrl()).build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(HttpURLConnection.HTTP_OK)
+                .message("OK")
+                .body(ResponseBody.create(null, -1, entry.getSource()))
+                .build();
+        try {
+            return onDeserialize(context, response);
+        } catch (IOException err) {
+            throw err;
+        } catch (Exception err) {
+            throw new IOException(err);
+        } finally {
+            response.body().close();
+        }
+    }
+
+    /**
+     * Cache the raw response body, as it's read by onDeserialize, instead of saving the
+     * deserialized object with onSaveCache.  Cached bodies are loaded with onDeserialize too,
+     * so the network and the cache share the same decoder.
+     */
+    protected boolean shouldCacheResponseBody() {
+        return false;
+    }
+
+    /**
+     * Deserialize the response while copying its body into a cache entry, which is only
+     * committed if the object was deserialized
+     */
+    T onDeserializeAndCache(Context context, Response response) throws Exception {
+        SimpleCache.Entry entry = Http.sCache.put(getUrl(), getCacheSeconds(), etag, lastModified);
+        if (entry == null)
+            return onDeserialize(context, response);
+        boolean committed = false;
+        BufferedSink cacheSink = null;
+        try {
+            cacheSink = entry.newSink();
+            ResponseBody body = response.body();
+            TeeSource tee = new TeeSource(body.source(), cacheSink);
+            BufferedSource source = Okio.buffer(tee);
+            T object = onDeserialize(context, response.newBuilder()
+                    .body(ResponseBody.create(body.contentType(), body.contentLength(), source))
+                    .build());
+            if (object != null) {
+                tee.drain();
+                if (tee.drained && !tee.failed) {
+                    cacheSink.close();
+                    cacheSink = null;
+                    entry.close();
+                    committed = true;
+                    ObjectCache memory = shouldCacheInMemory() ? Http.sMemoryCache : null;
+                    if (memory != null)
+                        memory.put(entry, object);
+                }
+            }
+            return object;
+        } finally {
+            if (!committed) {
+                Util.closeQuietly(cacheSink);
+                try {
+                    entry.abort();
+                } catch (IOException ignore) {
+                }
+                Http.removeFromMemory(getUrl());
+            }
+        }
     }
 
     protected void onCache(Context context, T object) throws IOException {
         try {
-            SimpleCache.Entry entry = Http.sCache.put(getUrl(), getCacheSeconds());
+            SimpleCache.Entry entry = Http.sCache.put(getUrl(), getCacheSeconds(), etag, lastModified);
             if (entry != null) {
+                boolean saved = false;
                 try {
                     onSaveCache(context, entry, object);
+                    saved = true;
                 } catch (IOException err) {
                     LOG.e("Error saving cache (" + getUrl() + ")", err);
                     entry.abort();
                 } finally {
                     Util.closeQuietly(entry);
                 }
+                ObjectCache memory = shouldCacheInMemory() ? Http.sMemoryCache : null;
+                if (memory != null) {
+                    if (saved)
+                        memory.put(entry, object);
+                    else
+                        memory.remove(getUrl());
+                }
             }
         } catch (IOException err) {
             LOG.e("Error caching response (" + getUrl() + ")", err);
@@ -272,6 +500,67 @@ public abstract class HttpTask<T> extends Task<T> {
         return builder.build();
     }
 
+    /**
+     * Copies everything read from the response body into a cache entry.  Decoders usually
+     * close the body once they have what they need, so closing reads the rest of it first.
+     */
+    static final class TeeSource extends ForwardingSource {
+
+        final BufferedSink cacheSink;
+        boolean failed;
+        boolean drained;
+        boolean closed;
+
+        TeeSource(Source source, BufferedSink cacheSink) {
+            super(source);
+            this.cacheSink = cacheSink;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0 && !failed) {
+                try {
+                    sink.copyTo(cacheSink.buffer(), sink.size() - read, read);
+                    cacheSink.emitCompleteSegments();
+                } catch (IOException err) {
+                    LOG.e("Error caching response body", err);
+                    failed = true;
+                }
+            }
+            if (read == -1)
+                drained = true;
+            return read;
+        }
+
+        /**
+         * Read whatever the decoder didn't, so the whole body ends up in the cache entry
+         */
+        void drain() throws IOException {
+            if (closed || drained)
+                return;
+            Buffer buffer = new Buffer();
+            while (read(buffer, 8192) != -1)
+                buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            try {
+                drain();
+            } catch (IOException err) {
+                LOG.e("Error reading the rest of the response body", err);
+                failed = true;
+            } finally {
+                closed = true;
+                super.close();
+            }
+        }
+
+    }
+
     /**
      * Get a cached copy of the URL
      *